@@ -0,0 +1,123 @@
+package frc.vision.camera;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+// Frames for the benchmarks to chew on, at whatever resolution they ask for.
+// Recorded frames are read from the frames/ resource directory (src/jmh/resources/frames), or from the vision.frames property.
+// Without any, frames are rendered by a SyntheticTagCamera with some colored game pieces drawn in, so every processor has something to find.
+// Frames are handed out round-robin, with their cached images cleared, so every call does the work a fresh frame would.
+public class SampleFrames {
+    // Number of frames to render when there aren't any recorded ones.
+    public static final int SYNTHETIC_COUNT = 8;
+    // Tags the synthetic frames show, which include the ones process.json looks for.
+    public static final List<Integer> SYNTHETIC_TAGS = List.of(7, 8);
+
+    protected final Frame[] frames;
+    protected final CameraBase cam;
+    protected int next;
+    protected long sequence;
+
+    protected SampleFrames(Frame[] frames, CameraBase cam) {
+        this.frames = frames;
+        this.cam = cam;
+    }
+
+    // Load the sample frames at a resolution, like "640x480".
+    public static SampleFrames load(String resolution) throws Exception {
+        Size size = parseSize(resolution);
+        int width = (int)size.width;
+        int height = (int)size.height;
+        CameraBase.logDir = Files.createTempDirectory("bench-logs").toFile();
+        CameraBase.logDir.deleteOnExit();
+        SyntheticTagCamera.Config cfg = new SyntheticTagCamera.Config();
+        cfg.width = width;
+        cfg.height = height;
+        cfg.ids = new ArrayList<>(SYNTHETIC_TAGS);
+        cfg.maxDistance = 72;
+        cfg.noise = 2;
+        SyntheticTagCamera cam = new SyntheticTagCamera("bench-" + resolution, cfg, LocalDateTime.now());
+
+        ArrayList<Frame> out = new ArrayList<>();
+        for (File file : recordedFiles()) {
+            Mat img = Imgcodecs.imread(file.getPath());
+            if (img.empty()) continue;
+            if (img.cols() != width || img.rows() != height) Imgproc.resize(img, img, size, 0, 0, Imgproc.INTER_AREA);
+            out.add(new Frame(img));
+        }
+        if (out.isEmpty()) {
+            for (int i = 0; i < SYNTHETIC_COUNT; i++) {
+                Frame frame = cam.readFrame(false);
+                Mat img = frame.getMat().clone();
+                drawPieces(img, i);
+                out.add(new Frame(img));
+            }
+        }
+        return new SampleFrames(out.toArray(new Frame[out.size()]), cam);
+    }
+
+    // Parse a resolution like "640x480".
+    public static Size parseSize(String resolution) {
+        String[] parts = resolution.toLowerCase().split("x");
+        return new Size(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    protected static List<File> recordedFiles() {
+        File dir = null;
+        String prop = System.getProperty("vision.frames");
+        if (prop != null) {
+            dir = new File(prop);
+        } else {
+            URL res = SampleFrames.class.getClassLoader().getResource("frames");
+            if (res != null && res.getProtocol().equals("file")) {
+                try {
+                    dir = new File(res.toURI());
+                } catch (URISyntaxException e) {
+                    dir = null;
+                }
+            }
+        }
+        if (dir == null || !dir.isDirectory()) return List.of();
+        File[] files = dir.listFiles((_dir, name) -> name.matches("(?i).*\\.(png|jpe?g|bmp)"));
+        if (files == null) return List.of();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    // Draw an orange ring, a teal ball, and a pale coral-colored bar, scaled to the frame and moved around a bit between frames.
+    protected static void drawPieces(Mat img, int i) {
+        double s = img.cols() / 640.0;
+        double shift = (i % 4) * 20 * s;
+        Imgproc.ellipse(img, new Point(140 * s + shift, 380 * s), new Size(70 * s, 18 * s), 0, 0, 360, new Scalar(0, 90, 255), (int)Math.max(1, 12 * s));
+        Imgproc.circle(img, new Point(500 * s - shift, 330 * s), (int)(45 * s), new Scalar(150, 160, 40), -1);
+        Imgproc.rectangle(img, new Point(300 * s, 60 * s + shift), new Point(330 * s, 220 * s + shift), new Scalar(150, 160, 170), -1);
+    }
+
+    // Get the next frame, ready to be processed as if it were just captured.
+    // The frame is reused, so nothing can still be holding it.
+    public Frame next() {
+        Frame frame = frames[next];
+        if (++next == frames.length) next = 0;
+        frame.reset();
+        frame.setCapture(sequence++, System.nanoTime());
+        return frame;
+    }
+
+    public int size() {
+        return frames.length;
+    }
+
+    // Get the camera the frames are from, which knows their resolution and intrinsics.
+    public CameraBase getCamera() {
+        return cam;
+    }
+}
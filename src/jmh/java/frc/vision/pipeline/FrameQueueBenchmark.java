@@ -0,0 +1,90 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.Frame;
+import frc.vision.camera.FramePool;
+import frc.vision.camera.SampleFrames;
+import java.util.AbstractQueue;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.openjdk.jmh.annotations.*;
+
+// Handing BGR frames from a capture thread to a processing thread, through the locked RingBuffer and the lock-free FrameQueue.
+// copyFrame is what every offer used to cost when frames were copied in, for comparison.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameQueueBenchmark {
+    @State(Scope.Group)
+    public static class Handoff {
+        @Param({"ring", "queue"})
+        public String impl;
+        @Param({"1", "4"})
+        public int capacity;
+        @Param({"320x240", "640x480", "1280x800"})
+        public String resolution;
+
+        AbstractQueue<Frame> queue;
+        FramePool pool;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            nu.pattern.OpenCV.loadLocally();
+            queue = impl.equals("ring") ? new RingBuffer(capacity) : new FrameQueue(capacity);
+            Size size = SampleFrames.parseSize(resolution);
+            pool = new FramePool(capacity + 4, capacity + 4, (int)size.width, (int)size.height);
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain() {
+            queue.clear();
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean produce(Handoff state) throws InterruptedException {
+        Frame frame = state.pool.acquire(0);
+        if (frame == null) return false;
+        state.queue.offer(frame);
+        frame.release();
+        return true;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean consume(Handoff state) {
+        Frame frame = state.queue.poll();
+        if (frame == null) return false;
+        frame.release();
+        return true;
+    }
+
+    @State(Scope.Thread)
+    public static class Copy {
+        @Param({"320x240", "640x480", "1280x800"})
+        public String resolution;
+
+        Mat src;
+        Mat dst;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            nu.pattern.OpenCV.loadLocally();
+            Size size = SampleFrames.parseSize(resolution);
+            src = new Mat(size, CvType.CV_8UC3);
+            dst = new Mat(size, CvType.CV_8UC3);
+        }
+    }
+
+    @Benchmark
+    public Mat copyFrame(Copy state) {
+        state.src.copyTo(state.dst);
+        return state.dst;
+    }
+}
@@ -0,0 +1,61 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.SampleFrames;
+import frc.vision.process.FpsCounter;
+import frc.vision.process.VisionProcessor;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+// What VisionLibsGroup itself costs per frame: from handing it a frame to having published the results,
+// with processors that do next to nothing, so all that's left is queueing, scheduling, and publishing.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SchedulingBenchmark {
+    @Param({"futures", "ring"})
+    public String engine;
+    // Number of processors in the plan.
+    @Param({"1", "4"})
+    public int procs;
+    @Param({"320x240", "640x480", "1280x800"})
+    public String resolution;
+
+    SampleFrames frames;
+    CameraBase cam;
+    VisionLibsGroup group;
+    AtomicLong published;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        nu.pattern.OpenCV.loadLocally();
+        frames = SampleFrames.load(resolution);
+        cam = frames.getCamera();
+        cam.getConfig().engine = engine;
+        cam.getConfig().traceInterval = 0;
+        ArrayList<VisionProcessor> list = new ArrayList<>();
+        for (int i = 0; i < procs; i++) list.add(new FpsCounter("fps" + i));
+        group = new VisionLibsGroup(list, null, false, ThreadPools.getDefault());
+        published = new AtomicLong();
+        group.setPostProcess((_img, _cam) -> published.incrementAndGet());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        group.cancel();
+    }
+
+    // Run a single frame through and wait until it's been published and let go of.
+    @Benchmark
+    public long roundTrip() {
+        group.accept(frames.next(), cam);
+        // yield instead of spinning, so the pool threads get a core on small machines
+        while (group.isRunning()) Thread.yield();
+        return published.get();
+    }
+}
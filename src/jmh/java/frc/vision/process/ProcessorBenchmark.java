@@ -0,0 +1,111 @@
+package frc.vision.process;
+
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
+import frc.vision.camera.SampleFrames;
+import frc.vision.load.ProcessorLoader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Time for each processor to handle a single frame, at a few resolutions.
+// Settings come from config/process.json (or the vision.config property), like a real run.
+// Run with -prof gc (the default in build.gradle) to see how much each one allocates per frame.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessorBenchmark {
+    @Param({"320x240", "640x480", "1280x800"})
+    public String resolution;
+
+    SampleFrames frames;
+    CameraBase cam;
+    AprilTagProcessor april;
+    RectVisionProcessor rect;
+    Coral2025Processor coral;
+    TagAlignedColorZoneProcessor tacz;
+    int coralSlot;
+    int taczSlot;
+    // Tags april found in each sample frame, so coral and tacz see the tags that go with the frame they're given.
+    Collection<AprilTagProcessor.AprilTag>[] tags;
+    int tagIndex;
+
+    static boolean configLoaded;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        nu.pattern.OpenCV.loadLocally();
+        loadConfig();
+        frames = SampleFrames.load(resolution);
+        cam = frames.getCamera();
+        april = (AprilTagProcessor)ProcessorLoader.load("april");
+        rect = (RectVisionProcessor)ProcessorLoader.load("algae2025");
+        tacz = (TagAlignedColorZoneProcessor)ProcessorLoader.load("coral2025");
+        Coral2025Processor.Config coralCfg = new Coral2025Processor.Config();
+        coral = new Coral2025Processor("coral", coralCfg);
+        coralSlot = coral.slotFor(cam);
+        taczSlot = tacz.slotFor(cam);
+
+        tags = new Collection[frames.size()];
+        ResultBus.Channel<Collection<AprilTagProcessor.AprilTag>> channel = ResultBus.channel(AprilTagProcessor.TOPIC, cam.getName());
+        ResultBus.Result<Collection<AprilTagProcessor.AprilTag>> found = new ResultBus.Result<>();
+        for (int i = 0; i < tags.length; i++) {
+            april.processObjects(frames.next(), cam, null);
+            channel.latest(found);
+            tags[i] = found.value;
+        }
+    }
+
+    static synchronized void loadConfig() throws Exception {
+        if (configLoaded) return;
+        ProcessorLoader.registerFactory(new AprilTagProcessor.Factory());
+        ProcessorLoader.registerFactory(new RectVisionProcessor.Factory());
+        ProcessorLoader.registerFactory(new Coral2025Processor.Factory());
+        ProcessorLoader.registerFactory(new TagAlignedColorZoneProcessor.Factory());
+        ProcessorLoader.registerFactory(new FpsCounter.Factory());
+        ProcessorLoader.registerFactory(new VideoSaver.Factory());
+        ProcessorLoader.registerFactory(new CalibrationProcessor.Factory());
+        File dir = new File(System.getProperty("vision.config", "config"));
+        ProcessorLoader.initConfig(new FileReader(new File(dir, "process.json")));
+        configLoaded = true;
+    }
+
+    // Publish the tags that go with the frame a processor is about to get, as if the tag camera had just found them.
+    void setTags(String tagCam, Frame frame) {
+        Collection<AprilTagProcessor.AprilTag> found = tags[tagIndex];
+        if (++tagIndex == tags.length) tagIndex = 0;
+        String key = tagCam == null ? cam.getName() : tagCam;
+        ResultBus.<Collection<AprilTagProcessor.AprilTag>>channel(AprilTagProcessor.TOPIC, key).publish(frame.getSequence(), frame.getTimestamp(), found);
+    }
+
+    @Benchmark
+    public Collection<VisionObject> aprilTag() {
+        return april.processObjects(frames.next(), cam, null);
+    }
+
+    @Benchmark
+    public Collection<VisionObject> rect() {
+        return rect.processObjects(frames.next(), cam, null);
+    }
+
+    // processStateful(), through the same slot lookup the pipeline uses.
+    @Benchmark
+    public void coral() {
+        Frame frame = frames.next();
+        setTags(coral.getConfig().tagCam, frame);
+        coral.process(coralSlot, frame, cam, null);
+    }
+
+    @Benchmark
+    public void tagAlignedColorZone() {
+        Frame frame = frames.next();
+        setTags(tacz.getConfig().tagCam, frame);
+        tacz.process(taczSlot, frame, cam, null);
+    }
+}
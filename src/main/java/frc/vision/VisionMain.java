@@ -26,6 +26,8 @@ public class VisionMain {
         CFG_DIR,
         ADDRESS,
         NAME,
+        BATCH,
+        RESULTS,
     };
 
     private static class Ref<T> {
@@ -39,6 +41,7 @@ public class VisionMain {
         boolean visionDebug = false;
         boolean echoErrors = false;
         boolean saveVideo = false;
+        boolean calibrate = false;
         TreeSet<String> camNames = new TreeSet<String>();
         {
             String cs = env.getOrDefault("VISION_CAMS", "");
@@ -48,6 +51,9 @@ public class VisionMain {
         File configDir = new File(env.getOrDefault("VISION_CONFIG", "config"));
         String name = env.getOrDefault("NT_IDENTITY", "pi");
         String serverAddress = env.get("NT_SERVER_ADDR");
+        // Recording to run through every camera's processors instead of running live, and where the results go.
+        String batchPath = null;
+        File resultsFile = null;
 
         CliState state = CliState.NORMAL;
         for (String arg : args) {
@@ -70,6 +76,12 @@ public class VisionMain {
                                 echoErrors = true;
                             } else if (longFlag.equals("save-video")) {
                                 saveVideo = true;
+                            } else if (longFlag.equals("calibrate")) {
+                                calibrate = true;
+                            } else if (longFlag.equals("batch")) {
+                                state = CliState.BATCH;
+                            } else if (longFlag.equals("results")) {
+                                state = CliState.RESULTS;
                             } else {
                                 System.err.println(String.format("Unknown long flag \"%s\"", longFlag));
                                 System.exit(1);
@@ -143,6 +155,14 @@ public class VisionMain {
                     name = arg;
                     state = CliState.NORMAL;
                     break;
+                case BATCH:
+                    batchPath = arg;
+                    state = CliState.NORMAL;
+                    break;
+                case RESULTS:
+                    resultsFile = new File(arg);
+                    state = CliState.NORMAL;
+                    break;
             }
         }
 
@@ -160,10 +180,21 @@ public class VisionMain {
             case NAME:
                 System.err.println("Expected the name to be used but no more arguments were passed");
                 System.exit(1);
+            case BATCH:
+                System.err.println("Expected a recording to run but no more arguments were passed");
+                System.exit(1);
+            case RESULTS:
+                System.err.println("Expected a results file but no more arguments were passed");
+                System.exit(1);
         }
 
         if (camNames.isEmpty()) {
-            System.err.println("No cameras were specified!");
+            if (batchPath != null) {
+                // run the recording with the default camera config
+                camNames.add("default");
+            } else {
+                System.err.println("No cameras were specified!");
+            }
         }
 
         long pid = ProcessHandle.current().pid();
@@ -182,12 +213,17 @@ public class VisionMain {
 
         Ref<VisionProcessor> save = new Ref<>();
         Ref<CameraGroup> cams_ = new Ref<>();
+        Ref<BatchRunner> batch_ = new Ref<>();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             if (cams_.inner != null) {
                 cams_.inner.cancel();
                 cams_.inner.flushLogs();
             }
+            if (batch_.inner != null) {
+                batch_.inner.cancel();
+                batch_.inner.flushLogs();
+            }
             if (save.inner != null && save.inner instanceof VideoSaver) {
                 VideoSaver saver = (VideoSaver)save.inner;
                 log.write(
@@ -213,6 +249,8 @@ public class VisionMain {
 
             CameraLoader.registerFactory(new FrameCamera.Factory());
             CameraLoader.registerFactory(new VideoCaptureCamera.Factory());
+            CameraLoader.registerFactory(new ReplayCamera.Factory());
+            CameraLoader.registerFactory(new SyntheticTagCamera.Factory());
             CameraLoader.initConfig(new FileReader(new File(configDir, "cameras.json")));
 
             ProcessorLoader.registerFactory(new FpsCounter.Factory());
@@ -221,13 +259,21 @@ public class VisionMain {
             ProcessorLoader.registerFactory(new VideoSaver.Factory());
             ProcessorLoader.registerFactory(new Coral2025Processor.Factory());
             ProcessorLoader.registerFactory(new TagAlignedColorZoneProcessor.Factory());
+            ProcessorLoader.registerFactory(new CalibrationProcessor.Factory());
             ProcessorLoader.initConfig(new FileReader(new File(configDir, "process.json")));
 
-            Executor exec = ForkJoinPool.commonPool();
+            File threadsFile = new File(configDir, "threads.json");
+            if (threadsFile.exists()) ThreadPools.initConfig(new FileReader(threadsFile));
+            if (ThreadPools.getConfig().opencvThreads >= 0) Core.setNumThreads(ThreadPools.getConfig().opencvThreads);
+            Executor exec = ThreadPools.getDefault();
 
             NetworkTableInstance nt = NetworkTableInstance.getDefault();
             NetworkTable table = null;
-            if (serverAddress != null) {
+            if (batchPath != null) {
+                // results are only read back out of the table, so it's never connected to anything
+                nt = NetworkTableInstance.create();
+                table = nt.getTable(name);
+            } else if (serverAddress != null) {
                 nt.setServer(serverAddress);
                 nt.startClient3(name);
                 table = nt.getTable(name);
@@ -243,6 +289,10 @@ public class VisionMain {
                 procs.add(save.inner);
             }
 
+            if (calibrate) {
+                procs.add(ProcessorLoader.load("calibrate"));
+            }
+
             {
                 String names = procs.getLibs(null)
                     .map(p -> p.getName())
@@ -251,6 +301,31 @@ public class VisionMain {
                 log.write(String.format("Loaded processors: %s\n", names));
             }
 
+            if (batchPath != null) {
+                if (resultsFile == null) {
+                    File batchLogs = new File(logDir, "batch");
+                    batchLogs.mkdirs();
+                    resultsFile = new File(batchLogs, String.format("results_%s_%s_%d.jsonl", camNamesStr, CameraBase.logDateFormat.format(time), pid));
+                }
+                try (PrintWriter results = new PrintWriter(resultsFile)) {
+                    BatchRunner batch = new BatchRunner(procs, table, results);
+                    for (String camName : camNames) batch.add(camName, batchPath, time);
+                    batch_.inner = batch;
+                    log.write(String.format("Running \"%s\" through cameras: %s\n", batchPath, String.join(", ", camNames)));
+                    log.flush();
+                    batch.run();
+                    batch_.inner = null;
+                    batch.flushLogs();
+                    String summary = batch.summary();
+                    System.out.print(summary);
+                    System.out.println(String.format("Results written to %s", resultsFile));
+                    log.write(summary);
+                    log.flush();
+                }
+                nt.close();
+                return;
+            }
+
             ImShower imgs = new ImShower();
             if (visionDebug) {
                procs.setPostProcess(imgs);
@@ -261,6 +336,14 @@ public class VisionMain {
             cams.publishStreams(nt);
             cams_.inner = cams;
 
+            if (calibrate) {
+                // cameras only run the processors they list, so make sure they all calibrate
+                cams.getCams().forEach(t -> {
+                    CameraConfig cfg = t.getCamera().getConfig();
+                    if (cfg.vlibs != null && !cfg.vlibs.contains("calibrate")) cfg.vlibs.add("calibrate");
+                });
+            }
+
             {
                 String names = cams.getCams()
                     .map(p -> p.getCamera().getName())
@@ -11,8 +11,6 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.time.Duration;
-import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.concurrent.*;
@@ -23,13 +21,21 @@ import org.opencv.imgproc.Imgproc;
 
 // Base class for all camera objects.
 // Implements functional interfaces.
-public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Mat> {
+public abstract class CameraBase implements Runnable, Callable<Frame>, Supplier<Frame> {
     // Name of the camera, used for loading from logs and debugging.
     protected String name;
     // Camera configuration.
     protected CameraConfig config;
-    // The most recent successful frame from the camera. May be mutated by vision processors
-    protected Mat frame;
+    // The most recent successful frame from the camera. The camera holds one reference to it until the next frame is read.
+    protected Frame frame;
+    // Preallocated buffers that frames are captured into.
+    protected FramePool pool;
+    // Lock guarding swaps of the current frame, so it can't be recycled while someone is retaining it.
+    protected final Object frameLock = new Object();
+    // Scratch buffer to capture into when frames need to be resized to the configured size.
+    protected Mat rawFrame;
+    // Format of the data readFrameRaw() gives us. Anything but BGR is kept as-is and converted lazily.
+    protected Frame.Encoding encoding = Frame.Encoding.BGR;
     // Writer to log debug information and exceptions.
     protected PrintWriter log;
     // Whether we should catch exceptions
@@ -37,15 +43,26 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
 
     protected ReentrantLock cameraLock;
 
-    protected Instant lastFrame;
+    // Paces frame reads to the configured throttle, or null if we read as fast as we can.
+    // This can be set up or changed by throttle() from other threads, so the capture loop always sees the latest one.
+    protected volatile FramePacer pacer;
+    // Where this camera's frames spend their time.
+    protected LatencyTracer tracer;
+    protected LatencyTracer.Histogram readTime;
+    // Sequence number of the next frame to be read.
+    protected long sequence;
 
     protected CvSource source;
     protected MjpegServer sink;
+    // Thread that annotates and sends frames to the stream, so it doesn't hold up capture.
+    protected FrameStreamer streamer;
 
     public static boolean echoErrors = false;
     public static File logDir = new File("logs/cam");
     public static final String logNameFormat = "log_%s_%s.txt";
     public static final DateTimeFormatter logDateFormat = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    // Seconds between latency reports, if the config doesn't say.
+    public static final double DEFAULT_TRACE_INTERVAL = 5;
 
     protected CameraBase(String name, CameraConfig cfg) throws IOException {
         this(name, cfg, LocalDateTime.now());
@@ -55,6 +72,12 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
         this.config = cfg;
         this.catchExceptions = true;
         this.cameraLock = new ReentrantLock();
+        this.pool = new FramePool(cfg.poolSize, cfg.poolSize * 4, cfg.width, cfg.height);
+        this.tracer = new LatencyTracer(cfg.traceInterval < 0 ? DEFAULT_TRACE_INTERVAL : cfg.traceInterval);
+        this.readTime = tracer.get(LatencyTracer.READ);
+        if (cfg.fpsThrottle > 0 && cfg.fpsThrottle < Integer.MAX_VALUE) {
+            this.pacer = new FramePacer(cfg.fpsThrottle, FramePacer.parsePolicy(cfg.pacing), cfg.maxCatchUp);
+        }
         String filename = String.format(logNameFormat, name, logDateFormat.format(date));
         File path = new File(logDir, filename);
         log = new PrintWriter(path);
@@ -64,20 +87,53 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
         File link = new File(logDir, String.format(logNameFormat, name, "LATEST"));
         link.delete();
         Files.createSymbolicLink(link.toPath(), Paths.get(filename));
+        if (cfg.cropBottom > 0 && cfg.height <= 0) {
+            log.write("cropBottom needs the height to be set, ignoring it\n");
+            log.flush();
+        }
         if (cfg.stream != null) {
             try {
                 String streamName = cfg.stream.name == null ? name : cfg.stream.name;
-                source = new CvSource(name + "-src", PixelFormat.kBGR, cfg.width, cfg.height, cfg.stream.fps);
+                int streamWidth = cfg.stream.width > 0 ? cfg.stream.width : cfg.width;
+                int streamHeight = cfg.stream.height > 0 ? cfg.stream.height : cfg.height;
+                source = new CvSource(name + "-src", PixelFormat.kBGR, streamWidth, streamHeight, cfg.stream.fps);
                 sink = cfg.stream.address == null ? new MjpegServer(streamName, cfg.stream.port) : new MjpegServer(streamName, cfg.stream.address, cfg.stream.port);
                 sink.setSource(source);
+                streamer = new FrameStreamer(this, source, cfg.stream);
+                streamer.start();
             } catch (Exception e) {
                 e.printStackTrace(log);
             }
         }
     }
 
-    // Main customization point for the camera. Read a single frame, or null if it failed.
-    protected abstract Mat readFrameRaw() throws Exception;
+    // Main customization point for the camera. Read a single frame, preferably into buf.
+    // Returns the image that was read, which may or may not be buf, or null if it failed.
+    protected abstract Mat readFrameRaw(Mat buf) throws Exception;
+
+    // Get the capture time of the frame that was just read by readFrameRaw(), comparable with System.nanoTime().
+    // Cameras that know when a frame was actually captured should override this, returning Long.MIN_VALUE means unknown.
+    protected long captureTimestamp() {
+        return Long.MIN_VALUE;
+    }
+
+    // Wait until this camera can give us frames again, called before every read without holding the camera lock.
+    // Returns false to skip this read. Cameras that can drop out should park here rather than fail reads in a loop.
+    protected boolean awaitReady() throws InterruptedException {
+        return true;
+    }
+
+    // Latch the next frame without retrieving it, so it can be lined up with other cameras.
+    // The next readFrame() then retrieves the latched frame instead of capturing a new one.
+    // Returns false if this camera can't grab separately, in which case readFrame() captures as usual.
+    public boolean grab() {
+        return false;
+    }
+
+    // Whether this camera has run out of frames for good, like a recording that reached its end.
+    public boolean isFinished() {
+        return false;
+    }
 
     // Method to be called after all cameras are initialized.
     public void postInit() {}
@@ -92,29 +148,54 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
         catchExceptions = ex;
     }
 
-    // Read a frame, do basic processing
-    public Mat readFrame() throws Exception {
+    // Read a frame, do basic processing.
+    // The returned frame is owned by the camera, and is only guaranteed to stay valid until the next call to this.
+    // Returns null if no new frame was read.
+    public Frame readFrame() throws Exception {
+        return readFrame(true);
+    }
+
+    // Read a frame, optionally skipping the throttle, for when something else is pacing reads.
+    public Frame readFrame(boolean pace) throws Exception {
         boolean locked = false;
+        Frame next = null;
         try {
-            if (!cameraLock.tryLock(config.lockTimeout, TimeUnit.MILLISECONDS)) return this.frame;
+            if (!awaitReady()) return null;
+            // wait for our slot before taking the lock, so nobody else is blocked while we wait
+            FramePacer pacer = this.pacer;
+            if (pace && pacer != null) pacer.await();
+            if (!cameraLock.tryLock(config.lockTimeout, TimeUnit.MILLISECONDS)) return null;
             locked = true;
-            Mat frame = readFrameRaw();
-            if (lastFrame != null) {
-                Duration dur = Duration.between(lastFrame, Instant.now());
-                long toSleep = (long)(1000.0 / (float)config.fpsThrottle) - dur.toMillis();
-                if (toSleep > 0) Thread.sleep(toSleep);
+            next = pool.acquire(config.lockTimeout);
+            if (next == null) {
+                log.write("Frame pool exhausted, dropping a frame\n");
+                log.flush();
+                return null;
             }
-            lastFrame = Instant.now();
-            if (frame == null) return this.frame;
-            // if (frame.dataAddr() == 0) return this.frame;
-            if (config.enforceSize && !(frame.rows() == config.height && frame.cols() == config.width)) {
-                if (this.frame == null) this.frame = new Mat();
-                Imgproc.resize(frame, this.frame, new Size(config.width, config.height));
+            Mat buf = next.getMat();
+            boolean resize = config.enforceSize;
+            if (resize && rawFrame == null) rawFrame = new Mat();
+            boolean raw = encoding != Frame.Encoding.BGR;
+            long readStart = System.nanoTime();
+            Mat frame = readFrameRaw(raw ? next.encodedBuffer() : resize ? rawFrame : buf);
+            readTime.since(readStart);
+            long timestamp = frame == null ? 0 : captureTimestamp();
+            if (timestamp == Long.MIN_VALUE) timestamp = System.nanoTime();
+            if (frame == null) return null;
+            // if (frame.dataAddr() == 0) return null;
+            if (raw && encoding.matches(frame)) {
+                next.setEncoded(frame, encoding);
+            } else {
+                if (resize && !(frame.rows() == config.height && frame.cols() == config.width)) {
+                    Imgproc.resize(frame, buf, new Size(config.width, config.height));
+                }
+                else if (frame != buf) frame.copyTo(buf);
             }
-            else this.frame = frame;
-            drawOnFrame(frame);
-            if (source != null) source.putFrame(frame);
-            return frame;
+            next.setCapture(sequence++, timestamp);
+            if (streamer != null) streamer.offer(next);
+            setFrame(next);
+            next = null;
+            return this.frame;
         }
         catch (NullPointerException e) {
             throw e;
@@ -126,15 +207,37 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
                 if (echoErrors) e.printStackTrace();
             }
             else throw e;
-            return frame;
+            return null;
         }
         finally {
+            if (next != null) next.release();
             if (locked) cameraLock.unlock();
         }
     }
 
-    private void drawOnFrame(Mat frame) {
-        if (config.cropBottom > 0) Imgproc.rectangle(frame, new Point(0, frame.rows() - config.cropBottom), new Point(frame.cols(), frame.rows()), new Scalar(0));
+    // Replace the current frame, taking ownership of the passed reference.
+    protected void setFrame(Frame next) {
+        Frame old;
+        synchronized (frameLock) {
+            old = this.frame;
+            this.frame = next;
+        }
+        if (old != null) old.release();
+    }
+
+    // Whether anyone is watching our stream right now.
+    public boolean hasClients() {
+        return streamer != null && streamer.hasClients();
+    }
+
+    // Get the thread that streams our frames, or null if we aren't streaming.
+    public FrameStreamer getStreamer() {
+        return streamer;
+    }
+
+    // Draw the configured overlays (crosshair and corner text) onto an image.
+    // This should only ever be given a copy of a frame, never the frame the processors see.
+    public void annotate(Mat frame) {
         Scalar color = new Scalar(0, 255, 255);
         if (config.crosshair > 0) {
             int cx = frame.cols() / 2;
@@ -211,15 +314,45 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
         return name;
     }
 
-    public Mat getFrame() {
-        return frame;
+    // Get the most recent frame, retained. The caller is responsible for releasing it.
+    // Returns null if no frame has been read yet.
+    public Frame getFrame() {
+        synchronized (frameLock) {
+            return frame == null ? null : frame.retain();
+        }
+    }
+
+    public LatencyTracer getTracer() {
+        return tracer;
+    }
+
+    // Get the pacer for frame reads, or null if they aren't throttled.
+    public FramePacer getPacer() {
+        return pacer;
+    }
+
+    // Limit frame reads to a rate, setting up a pacer if there wasn't one.
+    // This can be called from any thread, the new rate takes effect from the next read.
+    public synchronized void throttle(double fps) {
+        if (pacer == null) pacer = new FramePacer(fps, FramePacer.parsePolicy(config.pacing), config.maxCatchUp);
+        else pacer.setFps(fps);
+    }
+
+    // Get the format this camera captures frames in.
+    public Frame.Encoding getEncoding() {
+        return encoding;
+    }
+
+    // Get the pool that frames are captured into.
+    public FramePool getPool() {
+        return pool;
     }
 
     public PrintWriter getLog() {
         return log;
     }
 
-    public Mat get() {
+    public Frame get() {
         try {
             return readFrame();
         } catch (RuntimeException e) {
@@ -228,7 +361,7 @@ public abstract class CameraBase implements Runnable, Callable<Mat>, Supplier<Ma
             throw new RuntimeException(e);
         }
     }
-    public Mat call() throws Exception {
+    public Frame call() throws Exception {
         return readFrame();
     }
     public void run() {
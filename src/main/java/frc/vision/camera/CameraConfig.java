@@ -2,6 +2,9 @@ package frc.vision.camera;
 
 import edu.wpi.first.apriltag.AprilTagPoseEstimator;
 import frc.vision.load.Typed;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import org.opencv.core.*;
 
@@ -11,11 +14,40 @@ public class CameraConfig extends Typed {
     public int height = -1;
     public boolean enforceSize = false;
     public float fov = -1;
+    // Calibration file written by the calibrate processor. Without one, intrinsics are guessed from the fov.
+    public String calibration;
     public ArrayList<String> vlibs;
+    // Number of rows at the bottom of the frame that processors should ignore.
     public int cropBottom;
+    // Region of the frame that processors should look at, in pixels. Processors can narrow this further with their own.
+    public Rect roi;
     public int fpsThrottle = Integer.MAX_VALUE;
+    // What to do when reads fall behind the throttle, "skip" or "catchup".
+    public String pacing;
+    // Maximum number of back-to-back frames to read when catching up.
+    public int maxCatchUp = 1;
     public int lockTimeout = Integer.MAX_VALUE;
+    // Number of frame buffers to preallocate, the pool can grow up to four times this.
+    public int poolSize = 4;
     public StreamConfig stream;
+    // How frames get run through the processors, "futures" (the default) or "ring" for the preallocated stage ring.
+    public String engine;
+    // Number of frames that can be processed at once. Results are still published in the order the frames were captured.
+    public int maxInFlight = -1;
+    // What to do with frames that come in faster than they can be processed: "latest" (the default), "dropOldest", "block", or "throttle".
+    public String backpressure;
+    // Number of frames that can wait to be processed with "dropOldest" or "block".
+    public int queueSize = -1;
+    // Slowest that "throttle" will ever make capture.
+    public double minFps = -1;
+    // Seconds between latency reports in the log and NetworkTables, or 0 to turn tracing off. Defaults to 5.
+    public double traceInterval = -1;
+    // Thread pool from threads.json to run this camera's processors on, unless they name their own.
+    public String pool;
+    // Cores to pin the capture thread to.
+    public ArrayList<Integer> cpus;
+    // Cameras with the same sync group grab their frames at the same moment, and hand them off together.
+    public String syncGroup;
     public int crosshair = 0;
     public String bottomLeft;
     public String bottomRight;
@@ -23,6 +55,10 @@ public class CameraConfig extends Typed {
     public float offsetY;
     public float offsetZ;
 
+    // Loaded or guessed from the above the first time they're needed.
+    protected transient Intrinsics intrinsics;
+    protected transient AprilTagPoseEstimator.Config poseConfig;
+
     public void updateFrom(CameraConfig other) {
         if (width < 0) width = other.width;
         if (height < 0) height = other.height;
@@ -33,20 +69,64 @@ public class CameraConfig extends Typed {
             else vlibs.addAll(other.vlibs);
         }
         if (other.fpsThrottle < fpsThrottle) fpsThrottle = other.fpsThrottle;
+        if (pacing == null) pacing = other.pacing;
+        if (engine == null) engine = other.engine;
+        if (maxInFlight < 0) maxInFlight = other.maxInFlight;
+        if (backpressure == null) backpressure = other.backpressure;
+        if (queueSize < 0) queueSize = other.queueSize;
+        if (minFps < 0) minFps = other.minFps;
+        if (traceInterval < 0) traceInterval = other.traceInterval;
+        if (pool == null) pool = other.pool;
+        if (roi == null) roi = other.roi;
         if (crosshair == 0) crosshair = other.crosshair;
         if (bottomLeft == null) bottomLeft = other.bottomLeft;
         if (bottomRight == null) bottomRight = other.bottomRight;
     }
+    // Get the region of the frame that processors should look at, or null for the whole frame.
+    // cropBottom cuts the bottom off of roi, which needs the height to be known.
+    public Rect regionOfInterest() {
+        if (cropBottom <= 0 || height <= 0) return roi;
+        Rect out = roi == null ? new Rect(0, 0, width > 0 ? width : Short.MAX_VALUE, height) : roi.clone();
+        int bottom = height - cropBottom;
+        if (out.y + out.height > bottom) out.height = Math.max(0, bottom - out.y);
+        return out;
+    }
+
+    // Get the intrinsics for this camera at its configured resolution.
+    // If the calibration file can't be loaded, that's written to log, if there is one, and they're guessed from the fov.
+    public synchronized Intrinsics intrinsics(PrintWriter log) {
+        if (intrinsics == null) {
+            if (calibration != null) {
+                try {
+                    intrinsics = Intrinsics.load(new File(calibration)).scaledTo(width, height);
+                } catch (IOException e) {
+                    if (log != null) {
+                        log.write(String.format("Couldn't load calibration \"%s\", guessing from the fov\n", calibration));
+                        e.printStackTrace(log);
+                        log.flush();
+                    }
+                    if (CameraBase.echoErrors) e.printStackTrace();
+                }
+            }
+            if (intrinsics == null) intrinsics = Intrinsics.fromFov(width, height, fov);
+        }
+        return intrinsics;
+    }
+    public Intrinsics intrinsics() {
+        return intrinsics(null);
+    }
+    // Shared, so this must not be modified!
     public Mat camMat() {
-        float f = 0.5f / (float)Math.tan(fov * Math.PI / 360) * width;
-        return new MatOfFloat(
-            f, 0, width / 2,
-            0, f, height / 2,
-            0, 0, 1
-        ).reshape(1, 3); //Matt is meany face :P
+        return intrinsics().camMat();
+    }
+    public synchronized AprilTagPoseEstimator.Config poseConfig(PrintWriter log) {
+        if (poseConfig == null) {
+            Intrinsics intr = intrinsics(log);
+            poseConfig = new AprilTagPoseEstimator.Config(6.5, intr.fx, intr.fy, intr.cx, intr.cy);
+        }
+        return poseConfig;
     }
     public AprilTagPoseEstimator.Config poseConfig() {
-        float f = 0.5f / (float)Math.tan(fov * Math.PI / 360) * width;
-        return new AprilTagPoseEstimator.Config(6.5, f, f, width / 2, height / 2);
+        return poseConfig(null);
     }
 }
@@ -0,0 +1,126 @@
+package frc.vision.camera;
+
+import java.util.concurrent.TimeUnit;
+import org.opencv.videoio.VideoCapture;
+
+// Reopens a lost camera in the background, so the capture thread never blocks on V4L2 or spins waiting for it.
+// The capture thread asks for a reconnect with request() and then parks in awaitCapture() until a new capture is ready.
+// Failed attempts back off exponentially, and wake() cuts the wait short, like when the device shows up again.
+public class CaptureReconnector extends Thread {
+    public enum State {
+        // Nothing to do, the camera is fine.
+        IDLE,
+        // Trying to open the camera.
+        OPENING,
+        // Waiting before the next attempt.
+        BACKOFF,
+        // A new capture is open and waiting to be picked up.
+        READY,
+    }
+
+    // Bounds on the wait between attempts, in milliseconds.
+    protected static final long MIN_BACKOFF = 250;
+    protected static final long MAX_BACKOFF = 8000;
+
+    protected VideoCaptureCamera cam;
+    protected State state;
+    // The capture that was opened, until the capture thread picks it up.
+    protected VideoCapture ready;
+    protected long backoff;
+    protected boolean woken;
+    protected volatile boolean running;
+
+    // Number of attempts made so far.
+    protected int attempts;
+
+    public CaptureReconnector(VideoCaptureCamera cam) {
+        super(cam.getName() + "-reconnect");
+        this.cam = cam;
+        this.state = State.IDLE;
+        this.backoff = MIN_BACKOFF;
+        this.running = true;
+        setDaemon(true);
+    }
+
+    // Start trying to reconnect, if we aren't already.
+    public synchronized void request() {
+        if (state != State.IDLE) return;
+        state = State.OPENING;
+        backoff = MIN_BACKOFF;
+        notifyAll();
+    }
+
+    // Retry right away instead of waiting out the backoff.
+    public synchronized void wake() {
+        woken = true;
+        notifyAll();
+    }
+
+    // Wait up to timeout milliseconds for the camera to come back, returning the new capture or null if it didn't.
+    // Once a capture is returned, the caller owns it.
+    public synchronized VideoCapture awaitCapture(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (state != State.READY) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return null;
+            wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+        }
+        VideoCapture out = ready;
+        ready = null;
+        state = State.IDLE;
+        return out;
+    }
+
+    public synchronized State getConnectionState() {
+        return state;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    // Politely ask this thread to stop.
+    public synchronized void cancel() {
+        running = false;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                synchronized (this) {
+                    while (running && state != State.OPENING) wait();
+                }
+                if (!running) break;
+                // opening can take hundreds of milliseconds, so don't hold the lock for it
+                VideoCapture cap = cam.openCapture();
+                synchronized (this) {
+                    attempts++;
+                    if (cap != null) {
+                        ready = cap;
+                        state = State.READY;
+                        notifyAll();
+                        continue;
+                    }
+                    state = State.BACKOFF;
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                    while (running && !woken) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) break;
+                        wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+                    }
+                    woken = false;
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                    state = State.OPENING;
+                }
+            }
+        } catch (InterruptedException e) {
+            // we're being shut down
+        }
+        synchronized (this) {
+            if (ready != null) ready.release();
+            ready = null;
+        }
+    }
+}
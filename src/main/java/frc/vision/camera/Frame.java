@@ -0,0 +1,449 @@
+package frc.vision.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+// A single captured frame, borrowed from a camera's FramePool.
+// Frames are reference counted: anything that needs a frame after the callback it was given in returns must retain() it,
+// and release() it once it's done. When the last reference is released, the frame goes back to its pool to be reused.
+// Once a frame has been handed out, its image must not be modified.
+// Frames from cameras capturing raw MJPG or YUYV data keep it as-is, and only convert the images that actually get asked for.
+// Images derived from the frame (grayscale, blurred, HSV) are made once, the first time any processor asks for them,
+// and their buffers stay with the frame when it goes back to the pool, so they're reused for later captures.
+// Blurred and HSV images are only made over the regions that get asked for, so processors with an ROI don't pay for the whole frame.
+public class Frame implements AutoCloseable {
+    // Filters that derived images can be smoothed with before anything else is done to them.
+    public enum Blur {
+        NONE,
+        BOX,
+        GAUSSIAN,
+    }
+
+    // A derived image, computed at most once per capture for each pixel that's asked for.
+    // The buffer is always the size of the whole frame, but only the done region of it is filled in.
+    protected static class Derived {
+        Mat mat = new Mat();
+        // What's been computed this capture, what's been asked for, and what was asked for last capture.
+        final Rect done = new Rect();
+        final Rect asked = new Rect();
+        final Rect hint = new Rect();
+        // Scratch for derive().
+        final Rect want = new Rect();
+        final Rect area = new Rect();
+    }
+
+    // Format of the data a frame was captured in.
+    public enum Encoding {
+        // Already a BGR image.
+        BGR,
+        // JPEG data, as a single row of bytes.
+        MJPG,
+        // Packed YUV 4:2:2, as a two-channel image with luma in the first channel.
+        YUYV;
+
+        // Whether a buffer from the capture actually looks like this encoding.
+        // Captures can silently fall back to giving us BGR, so this is checked on every frame.
+        public boolean matches(Mat data) {
+            switch (this) {
+                case MJPG:
+                    return data.rows() == 1 && data.type() == CvType.CV_8UC1;
+                case YUYV:
+                    return data.type() == CvType.CV_8UC2;
+                default:
+                    return data.type() == CvType.CV_8UC3;
+            }
+        }
+    }
+
+    // Largest filter that derived images can be smoothed with.
+    public static final int MAX_KSIZE = 31;
+    // Kinds of derived images, for indexing them.
+    protected static final int BLURRED = 0;
+    protected static final int HSV = 1;
+    protected static final int KINDS = 2;
+    protected static final int BLURS = Blur.values().length;
+
+    // Scales that grayscale images can be decoded at, matching the reduced JPEG decoding modes.
+    protected static final int[] GRAY_SCALES = {1, 2, 4, 8};
+    protected static final int[] GRAY_FLAGS = {
+        Imgcodecs.IMREAD_GRAYSCALE,
+        Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2,
+        Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4,
+        Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8,
+    };
+
+    // The pool that this frame goes back to, or null if it isn't pooled.
+    protected final FramePool pool;
+    // The image buffer, reused between captures.
+    // For MJPG frames, this is replaced with the decoded image the first time it's needed.
+    protected Mat mat;
+    // Raw data for this frame, if it wasn't captured as BGR.
+    protected Mat encoded;
+    // Format of the data this frame currently holds.
+    protected volatile Encoding encoding;
+    // Whether mat holds this frame's image, always true for BGR frames.
+    protected volatile boolean decoded;
+    // Grayscale images at each scale in GRAY_SCALES, made as they're asked for.
+    protected final Mat[] grays;
+    protected final boolean[] grayValid;
+    // Blurred and HSV images, by derivedIndex(), made as they're asked for.
+    protected final AtomicReferenceArray<Derived> derived;
+    // Number of live references to this frame.
+    protected final AtomicInteger refs;
+    // Sequence number of this frame, counting up from zero for each camera.
+    protected long sequence;
+    // Monotonic capture time, in the same units and epoch as System.nanoTime().
+    protected long timestamp;
+    // When this frame was queued for processing, for tracing how long it waited.
+    protected volatile long queued;
+
+    Frame(FramePool pool, Mat mat) {
+        this.pool = pool;
+        this.mat = mat;
+        this.refs = new AtomicInteger();
+        this.encoding = Encoding.BGR;
+        this.decoded = true;
+        this.grays = new Mat[GRAY_SCALES.length];
+        this.grayValid = new boolean[GRAY_SCALES.length];
+        this.derived = new AtomicReferenceArray<Derived>(KINDS * BLURS * (MAX_KSIZE + 1));
+    }
+
+    // Create a frame that isn't backed by a pool, wrapping an existing image.
+    public Frame(Mat mat) {
+        this(null, mat);
+        refs.set(1);
+        timestamp = System.nanoTime();
+    }
+
+    // Get the BGR image for this frame. This must not be modified!
+    // Raw frames are converted the first time this is called.
+    public Mat getMat() {
+        if (!decoded) {
+            synchronized (this) {
+                if (!decoded) {
+                    if (encoding == Encoding.MJPG) {
+                        Mat img = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+                        mat.release();
+                        mat = img;
+                    } else {
+                        Imgproc.cvtColor(encoded, mat, Imgproc.COLOR_YUV2BGR_YUYV);
+                    }
+                    decoded = true;
+                }
+            }
+        }
+        return mat;
+    }
+
+    // Get a grayscale version of this frame at full resolution. This must not be modified!
+    public Mat getGray() {
+        return getGray(1);
+    }
+
+    // Get the factor that getGray(scale) actually shrinks by, the smallest in GRAY_SCALES that's at least scale.
+    // Coordinates in that image times this are full-frame coordinates.
+    public static int grayScale(int scale) {
+        return GRAY_SCALES[grayIndex(scale)];
+    }
+
+    protected static int grayIndex(int scale) {
+        int i = 0;
+        while (i < GRAY_SCALES.length - 1 && GRAY_SCALES[i] < scale) i++;
+        return i;
+    }
+
+    // Get a grayscale version of this frame, shrunk by a factor of 1, 2, 4, or 8. This must not be modified!
+    // MJPG frames decode straight to grayscale, at the reduced size if there is one, and YUYV frames just take the luma channel.
+    // Neither ever makes a color image.
+    public Mat getGray(int scale) {
+        int i = grayIndex(scale);
+        synchronized (this) {
+            if (!grayValid[i]) {
+                if (encoding == Encoding.MJPG && !decoded) {
+                    Mat img = Imgcodecs.imdecode(encoded, GRAY_FLAGS[i]);
+                    if (grays[i] != null) grays[i].release();
+                    grays[i] = img;
+                } else if (encoding == Encoding.YUYV && i == 0) {
+                    // pixels are interleaved so the luma can't be viewed in place, but pulling it out is a single pass
+                    if (grays[i] == null) grays[i] = new Mat();
+                    Core.extractChannel(encoded, grays[i], 0);
+                } else {
+                    if (grays[i] == null) grays[i] = new Mat();
+                    if (i == 0) {
+                        Mat img = getMat();
+                        if (img.channels() == 1) img.copyTo(grays[i]);
+                        else Imgproc.cvtColor(img, grays[i], Imgproc.COLOR_BGR2GRAY);
+                    } else {
+                        Mat full = getGray(1);
+                        Imgproc.resize(full, grays[i], new Size(full.cols() / GRAY_SCALES[i], full.rows() / GRAY_SCALES[i]), 0, 0, Imgproc.INTER_AREA);
+                    }
+                }
+                grayValid[i] = true;
+            }
+            return grays[i];
+        }
+    }
+
+    // Get the color image smoothed with a filter of the given (odd) size. This must not be modified!
+    public Mat getBlurred(Blur blur, int ksize) {
+        return getBlurred(blur, ksize, null);
+    }
+
+    // Get this frame in HSV. This must not be modified!
+    public Mat getHsv() {
+        return getHsv(Blur.NONE, 0);
+    }
+
+    // Get this frame in HSV, after smoothing it with a filter of the given size. This must not be modified!
+    public Mat getHsv(Blur blur, int ksize) {
+        return getHsv(blur, ksize, null);
+    }
+
+    // Same as getBlurred(), but only the pixels in region, or the whole frame if it's null, are sure to be filled in.
+    // The image is still the size of the whole frame, so views can take submatrices of it.
+    protected Mat getBlurred(Blur blur, int ksize, Rect region) {
+        if (blur == Blur.NONE || ksize <= 1) return getMat();
+        return derive(BLURRED, blur, ksize, region);
+    }
+
+    // Same as getHsv(), but only the pixels in region, or the whole frame if it's null, are sure to be filled in.
+    protected Mat getHsv(Blur blur, int ksize, Rect region) {
+        if (blur == Blur.NONE || ksize <= 1) {
+            blur = Blur.NONE;
+            ksize = 0;
+        }
+        return derive(HSV, blur, ksize, region);
+    }
+
+    // Make sure a derived image is computed over a region, and get it.
+    // The first time it's asked for in a capture, everything asked for last capture is computed along with it,
+    // since the same processors usually ask for the same regions every frame, so each image is normally made in one pass.
+    // Filters are run on submatrices, which see the real pixels around them, so this gives the same pixels as a whole-frame pass.
+    protected Mat derive(int kind, Blur blur, int ksize, Rect region) {
+        Mat src = getMat();
+        Derived d = derivedFor(kind, blur, ksize);
+        synchronized (d) {
+            Rect want = d.want;
+            if (region == null) set(want, 0, 0, src.cols(), src.rows());
+            else clipTo(want, region, src.cols(), src.rows());
+            extend(d.asked, want);
+            if (contains(d.done, want)) return d.mat;
+
+            Rect area = d.area;
+            set(area, want.x, want.y, want.width, want.height);
+            extend(area, d.done.width > 0 ? d.done : d.hint);
+            clipTo(area, area, src.cols(), src.rows());
+            d.mat.create(src.rows(), src.cols(), CvType.CV_8UC3);
+            // This may redo pixels that are already done and being read, but they come out the same
+            Mat from = kind == HSV ? getBlurred(blur, ksize, area) : src;
+            Mat in = from.submat(area);
+            Mat out = d.mat.submat(area);
+            if (kind == HSV) Imgproc.cvtColor(in, out, Imgproc.COLOR_BGR2HSV);
+            else if (blur == Blur.BOX) Imgproc.blur(in, out, new Size(ksize, ksize));
+            else Imgproc.GaussianBlur(in, out, new Size(ksize, ksize), 0);
+            in.release();
+            out.release();
+            set(d.done, area.x, area.y, area.width, area.height);
+        }
+        return d.mat;
+    }
+
+    private static void set(Rect r, int x, int y, int width, int height) {
+        r.x = x;
+        r.y = y;
+        r.width = width;
+        r.height = height;
+    }
+
+    // Clip a region to an image of the given size, into out.
+    private static void clipTo(Rect out, Rect r, int cols, int rows) {
+        int x = Math.max(0, Math.min(r.x, cols));
+        int y = Math.max(0, Math.min(r.y, rows));
+        int w = Math.max(0, Math.min(r.x + r.width, cols) - x);
+        int h = Math.max(0, Math.min(r.y + r.height, rows) - y);
+        set(out, x, y, w, h);
+    }
+
+    // Grow a region to cover another one. Empty regions cover nothing.
+    private static void extend(Rect into, Rect r) {
+        if (r.width <= 0 || r.height <= 0) return;
+        if (into.width <= 0 || into.height <= 0) {
+            set(into, r.x, r.y, r.width, r.height);
+            return;
+        }
+        int x = Math.min(into.x, r.x);
+        int y = Math.min(into.y, r.y);
+        int x1 = Math.max(into.x + into.width, r.x + r.width);
+        int y1 = Math.max(into.y + into.height, r.y + r.height);
+        set(into, x, y, x1 - x, y1 - y);
+    }
+
+    private static boolean contains(Rect outer, Rect r) {
+        if (r.width <= 0 || r.height <= 0) return true;
+        return r.x >= outer.x && r.y >= outer.y
+            && r.x + r.width <= outer.x + outer.width && r.y + r.height <= outer.y + outer.height;
+    }
+
+    // Index of a derived image in derived.
+    protected static int derivedIndex(int kind, Blur blur, int ksize) {
+        if (ksize > MAX_KSIZE) throw new IllegalArgumentException(String.format("Filters can be at most %d pixels, not %d", MAX_KSIZE, ksize));
+        return (kind * BLURS + blur.ordinal()) * (MAX_KSIZE + 1) + Math.max(0, ksize);
+    }
+
+    // Get the holder for a derived image, making it the first time it's asked for.
+    // Its buffer is reused for later captures, so after the first time this doesn't allocate anything.
+    // Different images can be made at the same time, but everyone asking for the same one waits for the first to finish it.
+    protected Derived derivedFor(int kind, Blur blur, int ksize) {
+        int i = derivedIndex(kind, blur, ksize);
+        Derived d = derived.get(i);
+        if (d == null) {
+            derived.compareAndSet(i, null, new Derived());
+            d = derived.get(i);
+        }
+        return d;
+    }
+
+    // Whether this frame has no image in it. This only looks at what was captured, so nothing gets decoded.
+    public boolean isEmpty() {
+        if (!decoded) return encoded == null || encoded.empty();
+        return mat == null || mat.dataAddr() == 0;
+    }
+
+    // Whether this frame holds JPEG data that hasn't necessarily been decoded.
+    public boolean isCompressed() {
+        return encoding == Encoding.MJPG;
+    }
+
+    // Get the format this frame was captured in.
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    // Get the raw data for this frame, or null if it was captured as BGR.
+    public Mat getEncoded() {
+        return encoding != Encoding.BGR ? encoded : null;
+    }
+
+    // Get the buffer to read raw data into.
+    Mat encodedBuffer() {
+        if (encoded == null) encoded = new Mat();
+        return encoded;
+    }
+
+    // Mark this frame as holding raw data in the given encoding, to be converted later.
+    void setEncoded(Mat data, Encoding encoding) {
+        if (data != encodedBuffer()) data.copyTo(encoded);
+        this.encoding = encoding;
+        decoded = encoding == Encoding.BGR;
+    }
+
+    // Get the region of the full frame this covers, or null if it's the whole frame.
+    public Rect getRoi() {
+        return null;
+    }
+
+    // Get a view of just part of this frame, without copying anything. A null region gives back this frame.
+    // The region's corner is moved up and left to a multiple of 8 pixels, so it lines up exactly at every grayscale scale.
+    // The view shares this frame's references, so retaining or releasing either is the same.
+    public Frame view(Rect region) {
+        if (region == null) return this;
+        int x = Math.max(0, region.x) & ~7;
+        int y = Math.max(0, region.y) & ~7;
+        return new FrameView(this, new Rect(x, y, region.x + region.width - x, region.y + region.height - y));
+    }
+
+    // Get the sequence number of this frame. Gaps in the sequence mean frames were dropped.
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Get the time this frame was captured, comparable with System.nanoTime().
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Get the time since this frame was captured, in nanoseconds.
+    public long age() {
+        return System.nanoTime() - timestamp;
+    }
+
+    // Get the time this frame was queued for processing, comparable with System.nanoTime(), or 0 if it hasn't been.
+    public long getQueued() {
+        return queued;
+    }
+
+    public void setQueued(long queued) {
+        this.queued = queued;
+    }
+
+    // Set the capture information, done by the camera before the frame is handed out.
+    void setCapture(long sequence, long timestamp) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+
+    // Get the number of live references, mostly for debugging.
+    public int refCount() {
+        return refs.get();
+    }
+
+    // Add a reference to this frame, returning itself for convenience.
+    public Frame retain() {
+        if (refs.getAndIncrement() <= 0) {
+            refs.decrementAndGet();
+            throw new IllegalStateException("Tried to retain a frame that was already released");
+        }
+        return this;
+    }
+
+    // Drop a reference to this frame, returning it to the pool if this was the last one.
+    public void release() {
+        int left = refs.decrementAndGet();
+        if (left == 0) {
+            if (pool != null) pool.recycle(this);
+        } else if (left < 0) {
+            refs.incrementAndGet();
+            throw new IllegalStateException("Released a frame more times than it was retained");
+        }
+    }
+
+    // Called by the pool when this frame is handed out again.
+    void reset() {
+        refs.set(1);
+        queued = 0;
+        encoding = Encoding.BGR;
+        decoded = true;
+        for (int i = 0; i < grayValid.length; i++) grayValid[i] = false;
+        for (int i = 0; i < derived.length(); i++) {
+            Derived d = derived.get(i);
+            if (d == null) continue;
+            synchronized (d) {
+                if (d.asked.width > 0) set(d.hint, d.asked.x, d.asked.y, d.asked.width, d.asked.height);
+                set(d.asked, 0, 0, 0, 0);
+                set(d.done, 0, 0, 0, 0);
+            }
+        }
+    }
+
+    // Free the native memory behind every image this frame holds, when its pool lets it go.
+    void dispose() {
+        mat.release();
+        if (encoded != null) encoded.release();
+        for (Mat gray : grays) {
+            if (gray != null) gray.release();
+        }
+        for (int i = 0; i < derived.length(); i++) {
+            Derived d = derived.get(i);
+            if (d != null) d.mat.release();
+        }
+    }
+
+    // Alias for release(), so frames can be used in try-with-resources blocks.
+    @Override
+    public void close() {
+        release();
+    }
+}
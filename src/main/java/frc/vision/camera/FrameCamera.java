@@ -11,22 +11,33 @@ public class FrameCamera extends CameraBase {
     protected Mat thisFrame;
     public FrameCamera(String name, Mat img, Config cfg, LocalDateTime date) throws IOException {
         super(name, cfg, date);
-        Imgproc.resize(img, thisFrame, new Size(config.width, config.height));
+        thisFrame = new Mat();
+        if (config.width > 0 && config.height > 0) Imgproc.resize(img, thisFrame, new Size(config.width, config.height));
+        else img.copyTo(thisFrame);
     }
     public FrameCamera(String name, Mat img, Config cfg) throws IOException {
         this(name, img, cfg, LocalDateTime.now());
     }
     public FrameCamera(String name, Config cfg, LocalDateTime date) throws IOException {
         super(name, cfg, date);
-        Size size = new Size(config.height, config.height);
+        Size size = new Size(config.width, config.height);
         try {
             if (cfg.filePath != null) {
                 Mat img = Imgcodecs.imread(cfg.filePath);
-                Imgproc.resize(img, thisFrame, size);
+                if (img.empty()) {
+                    log.write(String.format("Couldn't read an image from \"%s\"\n", cfg.filePath));
+                    log.flush();
+                } else if (size.width > 0 && size.height > 0) {
+                    thisFrame = new Mat();
+                    Imgproc.resize(img, thisFrame, size);
+                } else {
+                    thisFrame = img;
+                }
             }
         }
         finally {
             if (thisFrame == null) {
+                if (size.width <= 0 || size.height <= 0) size = new Size(640, 480);
                 thisFrame = new Mat(size, CvType.CV_8UC3, new Scalar(0));
             }
         }
@@ -36,12 +47,9 @@ public class FrameCamera extends CameraBase {
     }
 
     @Override
-    protected Mat readFrameRaw() {
-        if (frame == null) {
-            return thisFrame.clone();
-        }
-        thisFrame.copyTo(frame);
-        return frame;
+    protected Mat readFrameRaw(Mat buf) {
+        thisFrame.copyTo(buf);
+        return buf;
     }
 
     public static class Config extends CameraConfig {
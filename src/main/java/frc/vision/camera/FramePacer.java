@@ -0,0 +1,117 @@
+package frc.vision.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Paces a loop to a fixed rate using absolute deadlines, so that timing errors don't build up from frame to frame.
+// Waiting parks the thread until just before the deadline and then spins, which is much finer than Thread.sleep().
+public class FramePacer {
+    // What to do when we fall more than a period behind.
+    public enum Policy {
+        // Drop the deadlines that were missed and line back up with the schedule.
+        SKIP,
+        // Run up to maxCatchUp frames back-to-back to make up for the missed deadlines, dropping any more than that.
+        CATCH_UP,
+    }
+
+    // How long before a deadline we stop parking and start spinning, in nanoseconds.
+    // Parking usually oversleeps by some tens of microseconds.
+    protected static final long SPIN_NS = 100000;
+
+    protected volatile long period;
+    protected long next;
+    protected boolean started;
+    protected Policy policy;
+    protected int maxCatchUp;
+
+    // Number of deadlines that we got to late.
+    protected AtomicLong missed;
+    // Number of deadlines that were skipped entirely.
+    protected AtomicLong dropped;
+
+    public FramePacer(double fps, Policy policy, int maxCatchUp) {
+        this.period = (long)(1000000000.0 / fps);
+        this.policy = policy;
+        this.maxCatchUp = maxCatchUp;
+        this.missed = new AtomicLong();
+        this.dropped = new AtomicLong();
+    }
+    public FramePacer(double fps) {
+        this(fps, Policy.SKIP, 0);
+    }
+
+    // Parse a policy name from a config file, defaulting to skipping.
+    public static Policy parsePolicy(String name) {
+        if (name == null) return Policy.SKIP;
+        switch (name.toLowerCase()) {
+            case "catchup":
+            case "catch-up":
+            case "catch_up":
+                return Policy.CATCH_UP;
+            default:
+                return Policy.SKIP;
+        }
+    }
+
+    // Wait until the next deadline, returning it.
+    public long await() throws InterruptedException {
+        long now = System.nanoTime();
+        if (!started) {
+            next = now;
+            started = true;
+        }
+        long late = now - next;
+        if (late > 0) {
+            if (late > period / 8) missed.incrementAndGet();
+            long behind = late / period;
+            long allowed = policy == Policy.CATCH_UP ? maxCatchUp : 0;
+            if (behind > allowed) {
+                dropped.addAndGet(behind - allowed);
+                next += (behind - allowed) * period;
+            }
+        } else {
+            waitUntil(next);
+        }
+        long deadline = next;
+        next += period;
+        return deadline;
+    }
+
+    // Wait until System.nanoTime() reaches the given time.
+    public static void waitUntil(long deadline) throws InterruptedException {
+        while (true) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return;
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (left > SPIN_NS) LockSupport.parkNanos(left - SPIN_NS);
+            else Thread.onSpinWait();
+        }
+    }
+
+    // Restart the schedule from the next call to await().
+    public void reset() {
+        started = false;
+    }
+
+    // Change the target rate, keeping the current schedule.
+    public void setFps(double fps) {
+        period = (long)(1000000000.0 / fps);
+    }
+
+    public double getFps() {
+        return 1000000000.0 / period;
+    }
+
+    // Get the period between deadlines, in nanoseconds.
+    public long getPeriod() {
+        return period;
+    }
+
+    public long getMissed() {
+        return missed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,73 @@
+package frc.vision.camera;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// A pool of preallocated frame buffers for a single camera.
+// Frames are handed out with a single reference, and come back here when they're released for the last time.
+public class FramePool {
+    // Frames that are ready to be reused.
+    protected ArrayBlockingQueue<Frame> free;
+    // Number of frames that have been created for this pool.
+    protected AtomicInteger allocated;
+    // Maximum number of frames that will ever be created.
+    protected int maxSize;
+    protected int width;
+    protected int height;
+
+    // Create a pool that starts with size frames and can grow up to maxSize.
+    // If the width and height are known, the buffers are allocated up front.
+    public FramePool(int size, int maxSize, int width, int height) {
+        if (maxSize < size) maxSize = size;
+        this.free = new ArrayBlockingQueue<Frame>(maxSize);
+        this.allocated = new AtomicInteger();
+        this.maxSize = maxSize;
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < size; i++) {
+            allocated.incrementAndGet();
+            free.add(allocate());
+        }
+    }
+
+    // Make a new frame, once its place in allocated has been taken.
+    private Frame allocate() {
+        Mat mat = width > 0 && height > 0 ? new Mat(height, width, CvType.CV_8UC3) : new Mat();
+        return new Frame(this, mat);
+    }
+
+    // Get a frame to capture into, growing the pool if we're out.
+    // If the pool is already at its maximum size, wait up to timeout milliseconds for a frame to be released, returning null if none was.
+    public Frame acquire(long timeout) throws InterruptedException {
+        Frame out = free.poll();
+        if (out == null) {
+            // take a place before making the frame, so acquires at the same time can't go past maxSize together
+            if (allocated.getAndUpdate(n -> n < maxSize ? n + 1 : n) < maxSize) out = allocate();
+            else out = free.poll(timeout, TimeUnit.MILLISECONDS);
+            if (out == null) return null;
+        }
+        out.reset();
+        return out;
+    }
+
+    // Return a frame to the pool, called once its last reference is released.
+    // A frame that doesn't fit is let go, along with its buffers.
+    void recycle(Frame frame) {
+        if (free.offer(frame)) return;
+        allocated.decrementAndGet();
+        frame.dispose();
+    }
+
+    // Number of frames that have been created so far.
+    public int allocated() {
+        return allocated.get();
+    }
+
+    // Number of frames that are currently sitting unused.
+    public int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,122 @@
+package frc.vision.camera;
+
+import edu.wpi.first.cscore.CvSource;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+// Streams a camera's frames from a separate thread, so that JPEG compression doesn't add to capture latency.
+// Only the newest frame is kept: if a new frame comes in before the last one was sent, the old one is dropped.
+public class FrameStreamer extends Thread {
+    protected CameraBase cam;
+    protected CvSource source;
+    // The newest frame that hasn't been streamed yet.
+    protected AtomicReference<Frame> pending;
+    // Resolution to stream at, or null to stream at the camera's resolution.
+    protected Size size;
+    // Minimum time between streamed frames, in nanoseconds.
+    protected long period;
+    // The image that overlays get drawn on.
+    protected Mat out;
+    protected volatile boolean running;
+    protected LatencyTracer.Histogram annotateTime;
+    protected LatencyTracer.Histogram streamTime;
+
+    // Frames that were replaced before they could be sent.
+    protected AtomicLong dropped;
+    // Frames that were actually sent.
+    protected AtomicLong sent;
+
+    public FrameStreamer(CameraBase cam, CvSource source, StreamConfig cfg) {
+        super(cam.getName() + "-stream");
+        this.cam = cam;
+        this.source = source;
+        this.pending = new AtomicReference<Frame>();
+        this.size = cfg.width > 0 && cfg.height > 0 ? new Size(cfg.width, cfg.height) : null;
+        this.period = cfg.fps > 0 ? 1000000000L / cfg.fps : 0;
+        this.out = new Mat();
+        this.running = true;
+        this.annotateTime = cam.getTracer().get(LatencyTracer.ANNOTATE);
+        this.streamTime = cam.getTracer().get(LatencyTracer.STREAM);
+        this.dropped = new AtomicLong();
+        this.sent = new AtomicLong();
+        setDaemon(true);
+    }
+
+    // Whether anyone is watching the stream right now.
+    // cscore only enables a source while an MJPEG client is streaming from it.
+    public boolean hasClients() {
+        return source.isEnabled();
+    }
+
+    // Hand a frame off to be streamed. Nothing is kept if nobody is watching.
+    public void offer(Frame frame) {
+        if (!hasClients()) return;
+        Frame old = pending.getAndSet(frame.retain());
+        if (old != null) {
+            old.release();
+            dropped.incrementAndGet();
+        }
+        LockSupport.unpark(this);
+    }
+
+    // Politely ask this thread to stop.
+    public void cancel() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    @Override
+    public void run() {
+        long lastSent = System.nanoTime() - period;
+        while (running) {
+            if (pending.get() == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                FramePacer.waitUntil(lastSent + period);
+            } catch (InterruptedException e) {
+                break;
+            }
+            // anything that came in while we waited replaced the frame we woke up for
+            Frame frame = pending.getAndSet(null);
+            if (frame == null) continue;
+            try {
+                if (!hasClients()) continue;
+                Mat img = frame.getMat();
+                if (size != null && (img.cols() != (int)size.width || img.rows() != (int)size.height)) {
+                    Imgproc.resize(img, out, size, 0, 0, Imgproc.INTER_AREA);
+                } else {
+                    img.copyTo(out);
+                }
+                long start = System.nanoTime();
+                cam.annotate(out);
+                long annotated = System.nanoTime();
+                annotateTime.record(annotated - start);
+                source.putFrame(out);
+                lastSent = System.nanoTime();
+                streamTime.record(lastSent - annotated);
+                sent.incrementAndGet();
+            } catch (Exception e) {
+                e.printStackTrace(cam.getLog());
+                cam.getLog().flush();
+                if (CameraBase.echoErrors) e.printStackTrace();
+            } finally {
+                frame.release();
+            }
+        }
+        Frame frame = pending.getAndSet(null);
+        if (frame != null) frame.release();
+    }
+}
@@ -0,0 +1,165 @@
+package frc.vision.camera;
+
+import org.opencv.core.*;
+
+// A region of interest within another frame.
+// Images are submatrices of the parent's images, so nothing is copied, and references are shared with the parent.
+// Anything found in a view is at getRoi().x and getRoi().y relative to the full frame.
+public class FrameView extends Frame {
+    protected final Frame parent;
+    // The region of the parent, in full-resolution coordinates. This may hang off the edge, images are clipped to the frame.
+    protected final Rect roi;
+    // Submatrices, made as they're asked for.
+    protected Mat matView;
+    // The region clipped to the parent's full-resolution images.
+    protected Rect area;
+    protected final Mat[] grayViews;
+    // Processors ask for one derived image each, so only the last one is kept, by derivedIndex().
+    protected int derivedKey = -1;
+    protected Mat derivedView;
+
+    FrameView(Frame parent, Rect roi) {
+        super(null, null);
+        this.parent = parent;
+        this.roi = roi;
+        this.grayViews = new Mat[GRAY_SCALES.length];
+    }
+
+    // Get the frame this is a view into.
+    public Frame getParent() {
+        return parent;
+    }
+
+    @Override
+    public Rect getRoi() {
+        return roi;
+    }
+
+    @Override
+    public Frame view(Rect region) {
+        if (region == null) return this;
+        // views of views are just smaller views of the original frame
+        Rect shifted = new Rect(region.x + roi.x, region.y + roi.y, region.width, region.height);
+        return parent.view(intersect(shifted, roi));
+    }
+
+    @Override
+    public synchronized Mat getMat() {
+        if (matView == null) matView = parent.getMat().submat(area());
+        return matView;
+    }
+
+    @Override
+    public synchronized Mat getGray(int scale) {
+        int i = grayIndex(scale);
+        if (grayViews[i] == null) {
+            Mat full = parent.getGray(GRAY_SCALES[i]);
+            grayViews[i] = full.submat(clip(roi, full.cols(), full.rows(), GRAY_SCALES[i]));
+        }
+        return grayViews[i];
+    }
+
+    // Derived images belong to the whole frame, so every view and processor shares them,
+    // but only this view's region is asked for, so only the parts some processor looks at get made.
+    // Filters near the edge of the view still see the real pixels past it.
+    @Override
+    public synchronized Mat getBlurred(Blur blur, int ksize) {
+        if (blur == Blur.NONE || ksize <= 1) return getMat();
+        return viewOf(derivedIndex(BLURRED, blur, ksize), parent.getBlurred(blur, ksize, area()));
+    }
+
+    @Override
+    public synchronized Mat getHsv(Blur blur, int ksize) {
+        if (blur == Blur.NONE || ksize <= 1) {
+            blur = Blur.NONE;
+            ksize = 0;
+        }
+        return viewOf(derivedIndex(HSV, blur, ksize), parent.getHsv(blur, ksize, area()));
+    }
+
+    private Mat viewOf(int key, Mat full) {
+        if (key != derivedKey) {
+            derivedView = full.submat(area());
+            derivedKey = key;
+        }
+        return derivedView;
+    }
+
+    private Rect area() {
+        if (area == null) {
+            Mat full = parent.getMat();
+            area = clip(roi, full.cols(), full.rows(), 1);
+        }
+        return area;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return parent.isEmpty();
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return parent.isCompressed();
+    }
+
+    @Override
+    public Encoding getEncoding() {
+        return parent.getEncoding();
+    }
+
+    // Raw data can't be cut down, so this is the parent's.
+    @Override
+    public Mat getEncoded() {
+        return parent.getEncoded();
+    }
+
+    @Override
+    public long getSequence() {
+        return parent.getSequence();
+    }
+
+    @Override
+    public long getTimestamp() {
+        return parent.getTimestamp();
+    }
+
+    @Override
+    public long age() {
+        return parent.age();
+    }
+
+    @Override
+    public int refCount() {
+        return parent.refCount();
+    }
+
+    @Override
+    public Frame retain() {
+        parent.retain();
+        return this;
+    }
+
+    @Override
+    public void release() {
+        parent.release();
+    }
+
+    // Scale a region down and clip it to an image of the given size.
+    private static Rect clip(Rect r, int cols, int rows, int scale) {
+        int x = Math.max(0, Math.min(r.x / scale, cols));
+        int y = Math.max(0, Math.min(r.y / scale, rows));
+        int w = Math.max(0, Math.min((r.x + r.width) / scale, cols) - x);
+        int h = Math.max(0, Math.min((r.y + r.height) / scale, rows) - y);
+        return new Rect(x, y, w, h);
+    }
+
+    // Get the overlap of two regions, which may be empty.
+    public static Rect intersect(Rect a, Rect b) {
+        int x = Math.max(a.x, b.x);
+        int y = Math.max(a.y, b.y);
+        int w = Math.max(0, Math.min(a.x + a.width, b.x + b.width) - x);
+        int h = Math.max(0, Math.min(a.y + a.height, b.y + b.height) - y);
+        return new Rect(x, y, w, h);
+    }
+}
@@ -0,0 +1,121 @@
+package frc.vision.camera;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+
+// Focal length, optical center, and lens distortion of a camera.
+// These come from a calibration file if there is one, and are otherwise guessed from the field of view with no distortion.
+// The matrices are made once and then shared, so callers must not modify them.
+public class Intrinsics {
+    // Resolution the intrinsics were measured at.
+    public int width;
+    public int height;
+    // Focal lengths and optical center, in pixels.
+    public double fx;
+    public double fy;
+    public double cx;
+    public double cy;
+    // Distortion coefficients in OpenCV's order (k1, k2, p1, p2, k3, ...), or null for none.
+    public double[] dist;
+    // Reprojection error from calibration, in pixels, or negative if these weren't calibrated.
+    public double rms = -1;
+
+    protected transient Mat camMat;
+    protected transient MatOfDouble distMat;
+
+    // Guess intrinsics from the horizontal field of view, in degrees.
+    public static Intrinsics fromFov(int width, int height, double fov) {
+        Intrinsics out = new Intrinsics();
+        double f = 0.5 / Math.tan(fov * Math.PI / 360) * width;
+        out.width = width;
+        out.height = height;
+        out.fx = f;
+        out.fy = f;
+        out.cx = width / 2;
+        out.cy = height / 2;
+        return out;
+    }
+
+    public static Intrinsics load(File file) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            Intrinsics out = new Gson().fromJson(reader, Intrinsics.class);
+            if (out == null) throw new IOException("Empty calibration file " + file);
+            return out;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        try (Writer writer = new FileWriter(file)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+        }
+    }
+
+    // Get these intrinsics for a different resolution, assuming the sensor was scaled and not cropped.
+    public Intrinsics scaledTo(int width, int height) {
+        if (width <= 0 || height <= 0 || (width == this.width && height == this.height)) return this;
+        double sx = (double)width / this.width;
+        double sy = (double)height / this.height;
+        Intrinsics out = new Intrinsics();
+        out.width = width;
+        out.height = height;
+        out.fx = fx * sx;
+        out.fy = fy * sy;
+        out.cx = cx * sx;
+        out.cy = cy * sy;
+        out.dist = dist;
+        out.rms = rms;
+        return out;
+    }
+
+    public boolean hasDistortion() {
+        if (dist == null) return false;
+        for (double d : dist) if (d != 0) return true;
+        return false;
+    }
+
+    public synchronized Mat camMat() {
+        if (camMat == null) {
+            camMat = new Mat(3, 3, CvType.CV_64F);
+            camMat.put(0, 0,
+                fx, 0, cx,
+                0, fy, cy,
+                0, 0, 1
+            );
+        }
+        return camMat;
+    }
+
+    public synchronized MatOfDouble distCoeffs() {
+        if (distMat == null) distMat = dist == null ? new MatOfDouble() : new MatOfDouble(dist);
+        return distMat;
+    }
+
+    // Undistort pixel coordinates, given as x0, y0, x1, y1, ... in place.
+    // This only touches the points we care about, instead of remapping the whole image.
+    public void undistort(double[] xy) {
+        if (!hasDistortion()) return;
+        Point[] pts = new Point[xy.length / 2];
+        for (int i = 0; i < pts.length; i++) pts[i] = new Point(xy[2 * i], xy[2 * i + 1]);
+        MatOfPoint2f src = new MatOfPoint2f(pts);
+        MatOfPoint2f dst = new MatOfPoint2f();
+        // passing the camera matrix as P gives back pixels instead of normalized coordinates
+        Calib3d.undistortPoints(src, dst, camMat(), distCoeffs(), new Mat(), camMat());
+        Point[] out = dst.toArray();
+        for (int i = 0; i < out.length; i++) {
+            xy[2 * i] = out[i].x;
+            xy[2 * i + 1] = out[i].y;
+        }
+        src.release();
+        dst.release();
+    }
+}
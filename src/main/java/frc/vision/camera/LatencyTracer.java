@@ -0,0 +1,181 @@
+package frc.vision.camera;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableValue;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Tracks where a camera's frames spend their time, from capture to publishing the results.
+// Each step gets a preallocated histogram of how long it took, which is reported every so often and then cleared,
+// so the numbers are always for the last interval. Recording a time is a few atomic adds and never allocates.
+public class LatencyTracer {
+    // Names of the steps that every camera goes through.
+    // readFrameRaw() in the capture thread.
+    public static final String READ = "read";
+    // Drawing the camera's overlays on the streamed frame.
+    public static final String ANNOTATE = "annotate";
+    // Handing the streamed frame to cscore.
+    public static final String STREAM = "stream";
+    // Waiting between capture and the start of processing.
+    public static final String QUEUE = "queue";
+    // Writing every processor's results to NetworkTables.
+    public static final String NT = "nt";
+    // Drawing every processor's results on the debug frame.
+    public static final String DRAW = "draw";
+    // The post-process callback, usually showing or saving the frame.
+    public static final String POST = "post";
+    // Capture to the end of publishing.
+    public static final String TOTAL = "total";
+
+    // A histogram of durations, with buckets about an eighth of a power of two wide, so percentiles are within about 12%.
+    public static class Histogram {
+        // Durations under this many nanoseconds get a bucket each.
+        protected static final int LINEAR = 16;
+        protected static final int SUB_BITS = 3;
+        protected static final int SUBS = 1 << SUB_BITS;
+        // Anything longer than 2^40 ns (about 18 minutes) goes in the last bucket.
+        protected static final int MAX_EXP = 40;
+        protected static final int BUCKETS = LINEAR + (MAX_EXP - 4 + 1) * SUBS;
+
+        protected final boolean enabled;
+        protected final AtomicLongArray counts;
+        protected final AtomicLong max;
+
+        protected Histogram(boolean enabled) {
+            this.enabled = enabled;
+            this.counts = new AtomicLongArray(enabled ? BUCKETS : 0);
+            this.max = new AtomicLong();
+        }
+
+        protected static int bucketOf(long ns) {
+            if (ns < LINEAR) return (int)Math.max(0, ns);
+            int exp = 63 - Long.numberOfLeadingZeros(ns);
+            if (exp > MAX_EXP) return BUCKETS - 1;
+            int sub = (int)(ns >>> (exp - SUB_BITS)) & (SUBS - 1);
+            return LINEAR + (exp - 4) * SUBS + sub;
+        }
+
+        // Largest duration that goes in a bucket.
+        protected static long upperOf(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int exp = (bucket - LINEAR) / SUBS + 4;
+            int sub = (bucket - LINEAR) % SUBS;
+            return ((long)(SUBS + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        // Record a duration, in nanoseconds.
+        public void record(long ns) {
+            if (!enabled) return;
+            counts.incrementAndGet(bucketOf(ns));
+            long m;
+            while (ns > (m = max.get()) && !max.compareAndSet(m, ns));
+        }
+
+        // Record the time since start, which came from System.nanoTime().
+        public void since(long start) {
+            if (enabled) record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            long out = 0;
+            for (int i = 0; i < counts.length(); i++) out += counts.get(i);
+            return out;
+        }
+
+        // Get the duration that a fraction of the recorded ones were at or under, in nanoseconds.
+        public long percentile(double fraction) {
+            long total = count();
+            if (total == 0) return 0;
+            long target = (long)Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target) return Math.min(upperOf(i), max.get());
+            }
+            return max.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        // Clear everything. Durations recorded at the same time might be lost.
+        public void reset() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+            max.set(0);
+        }
+    }
+
+    protected final boolean enabled;
+    protected final long interval;
+    protected final LinkedHashMap<String, Histogram> histograms;
+    protected long lastReport;
+
+    // Create a tracer that reports every interval seconds, or one that doesn't record anything if that's 0 or less.
+    public LatencyTracer(double interval) {
+        this.enabled = interval > 0;
+        this.interval = (long)(interval * 1e9);
+        this.histograms = new LinkedHashMap<>();
+        this.lastReport = System.nanoTime();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Get the histogram for a step, making it if it's new.
+    // Look these up ahead of time and keep them, since this locks.
+    public synchronized Histogram get(String name) {
+        return histograms.computeIfAbsent(name, _name -> new Histogram(enabled));
+    }
+
+    // Write the percentiles for every step to a network table and the log, if it's been long enough since the last time, and clear them.
+    // The table can be null to only write to the log.
+    public void report(NetworkTable table, PrintWriter log) {
+        report(table, log, false);
+    }
+
+    // Same as report(), but whether or not it's been long enough, like at the end of a run.
+    public void flush(NetworkTable table, PrintWriter log) {
+        report(table, log, true);
+    }
+
+    protected void report(NetworkTable table, PrintWriter log, boolean force) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        long elapsed;
+        ArrayList<String> names;
+        ArrayList<Histogram> hists;
+        synchronized (this) {
+            elapsed = now - lastReport;
+            if (!force && elapsed < interval) return;
+            lastReport = now;
+            names = new ArrayList<>(histograms.keySet());
+            hists = new ArrayList<>(histograms.values());
+        }
+        log.write(String.format("Latency over the last %.1fs, in ms:\n", elapsed / 1e9));
+        for (int i = 0; i < names.size(); i++) {
+            Histogram hist = hists.get(i);
+            long count = hist.count();
+            if (count == 0) continue;
+            double p50 = hist.percentile(0.5) / 1e6;
+            double p95 = hist.percentile(0.95) / 1e6;
+            double p99 = hist.percentile(0.99) / 1e6;
+            double max = hist.max() / 1e6;
+            hist.reset();
+            log.write(String.format("  %-20s n %6d  p50 %8.3f  p95 %8.3f  p99 %8.3f  max %8.3f\n", names.get(i), count, p50, p95, p99, max));
+            if (table != null) {
+                NetworkTable sub = table.getSubTable(names.get(i));
+                sub.putValue("count", NetworkTableValue.makeInteger(count));
+                sub.putValue("p50", NetworkTableValue.makeDouble(p50));
+                sub.putValue("p95", NetworkTableValue.makeDouble(p95));
+                sub.putValue("p99", NetworkTableValue.makeDouble(p99));
+                sub.putValue("max", NetworkTableValue.makeDouble(max));
+            }
+        }
+        log.flush();
+    }
+}
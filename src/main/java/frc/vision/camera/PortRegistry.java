@@ -0,0 +1,210 @@
+package frc.vision.camera;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Keeps track of which video devices are plugged in where, so cameras don't have to walk sysfs every time they reconnect.
+// Devices are scanned from /sys/class/video4linux once, and then again only after /dev says something was plugged in or removed.
+// Anything waiting on a device (like a camera's reconnector) can listen for those changes instead of polling.
+public class PortRegistry {
+    // A single V4L2 device node.
+    public static class Device {
+        // Number N of /dev/videoN.
+        public int number;
+        // Path to the device node.
+        public String node;
+        // Real sysfs path of the interface the device belongs to, like .../1-1.2/1-1.2:1.0
+        public String iface;
+        // USB port the device is plugged into, like 1-1.2, or null if it isn't USB.
+        public String usbPort;
+        // Name the driver reports for the device.
+        public String name;
+        // Index of the node within its device, capture nodes are 0 and metadata nodes come after.
+        public int index;
+        // Names of the /dev/v4l/by-id and by-path links to this device.
+        public List<String> links;
+
+        public String toString() {
+            return String.format("%s (%s at %s)", node, name, usbPort);
+        }
+    }
+
+    protected static PortRegistry instance;
+
+    protected File sysClass;
+    protected Path devDir;
+    // Devices as of the last scan, ordered by number.
+    protected volatile List<Device> devices;
+    // Whether something changed since the last scan.
+    protected volatile boolean stale;
+    protected CopyOnWriteArrayList<Runnable> listeners;
+    protected Thread watcher;
+    // Whether the watcher is running, if it isn't we have to rescan every time.
+    protected volatile boolean watching;
+    // Number of times we've scanned, mostly for debugging.
+    protected int scans;
+
+    public PortRegistry(File sysClass, Path devDir) {
+        this.sysClass = sysClass;
+        this.devDir = devDir;
+        this.devices = new ArrayList<Device>();
+        this.stale = true;
+        this.listeners = new CopyOnWriteArrayList<Runnable>();
+    }
+
+    // Get the shared registry for this machine, watching for changes.
+    public static synchronized PortRegistry get() {
+        if (instance == null) {
+            instance = new PortRegistry(new File("/sys/class/video4linux"), Paths.get("/dev"));
+            instance.startWatching();
+        }
+        return instance;
+    }
+
+    // Get all of the devices that are currently plugged in, rescanning if anything changed.
+    public List<Device> devices() {
+        if (stale || !watching) {
+            synchronized (this) {
+                if (stale || !watching) rescan();
+            }
+        }
+        return devices;
+    }
+
+    // Find the capture node for a USB interface, given the interface's real sysfs path.
+    public String resolveInterface(String iface) {
+        for (Device dev : devices()) {
+            if (dev.index == 0 && iface.equals(dev.iface)) return dev.node;
+        }
+        return null;
+    }
+
+    // Find the capture node for a named port.
+    // The name can be the name the driver reports, the USB port (like "1-1.2"), or the name of a /dev/v4l link.
+    public String resolveName(String name) {
+        for (Device dev : devices()) {
+            if (dev.index != 0) continue;
+            if (name.equals(dev.usbPort) || name.equalsIgnoreCase(dev.name) || dev.links.contains(name)) return dev.node;
+        }
+        return null;
+    }
+
+    // Run something whenever a video device is plugged in or removed.
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    // Forget the cached devices and let everyone know something changed.
+    public void invalidate() {
+        stale = true;
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public int getScans() {
+        return scans;
+    }
+
+    protected void rescan() {
+        stale = false;
+        scans++;
+        ArrayList<Device> found = new ArrayList<Device>();
+        File[] entries = sysClass.listFiles((_dir, name) -> name.startsWith("video") && name.substring(5).matches("\\d+"));
+        if (entries != null) {
+            for (File entry : entries) {
+                Device dev = new Device();
+                dev.number = Integer.parseInt(entry.getName().substring(5));
+                dev.node = devDir.resolve(entry.getName()).toString();
+                dev.name = readLine(new File(entry, "name"));
+                String index = readLine(new File(entry, "index"));
+                dev.index = index == null ? 0 : Integer.parseInt(index);
+                dev.links = new ArrayList<String>();
+                try {
+                    dev.iface = new File(entry, "device").getCanonicalPath();
+                    // USB interfaces are named like 1-1.2:1.0, and the port is the part before the colon
+                    String ifaceName = new File(dev.iface).getName();
+                    int colon = ifaceName.indexOf(':');
+                    if (colon > 0) dev.usbPort = ifaceName.substring(0, colon);
+                } catch (IOException e) {
+                    dev.iface = null;
+                }
+                found.add(dev);
+            }
+        }
+        found.sort(Comparator.comparingInt(dev -> dev.number));
+        Map<String, Device> byNode = new HashMap<String, Device>();
+        for (Device dev : found) byNode.put(dev.node, dev);
+        for (String kind : new String[] {"by-id", "by-path"}) {
+            File[] links = devDir.resolve("v4l").resolve(kind).toFile().listFiles();
+            if (links == null) continue;
+            for (File link : links) {
+                try {
+                    Device dev = byNode.get(link.getCanonicalPath());
+                    if (dev != null) dev.links.add(link.getName());
+                } catch (IOException e) {
+                    // dangling link, the device was probably just removed
+                }
+            }
+        }
+        devices = found;
+    }
+
+    // Watch /dev for video devices coming and going.
+    protected void startWatching() {
+        if (watcher != null) return;
+        WatchService ws;
+        try {
+            ws = devDir.getFileSystem().newWatchService();
+            devDir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            // without a watcher, we just rescan every time something asks
+            e.printStackTrace();
+            return;
+        }
+        watcher = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = ws.take();
+                } catch (InterruptedException | ClosedWatchServiceException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) changed = true;
+                    else if (event.context().toString().startsWith("video")) changed = true;
+                }
+                key.reset();
+                if (changed) invalidate();
+            }
+        }, "port-registry");
+        watcher.setDaemon(true);
+        watcher.start();
+        watching = true;
+    }
+
+    private static String readLine(File f) {
+        try {
+            List<String> lines = Files.readAllLines(f.toPath());
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package frc.vision.camera;
+
+import frc.vision.load.*;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.*;
+
+// A camera that plays back a recorded video file or a directory of images.
+// Frames can be decoded into memory up front so decoding doesn't count against whatever is being measured,
+// and they can be played back either in real time, following the recorded timestamps, or as fast as possible.
+public class ReplayCamera extends CameraBase {
+    protected static final String[] imageExtensions = {".png", ".jpg", ".jpeg", ".bmp", ".tif", ".tiff"};
+
+    // Decoded frames, if they were preloaded.
+    protected ArrayList<Mat> frames;
+    // Recorded timestamps, in milliseconds from the start of the recording.
+    protected ArrayList<Double> times;
+    // Capture to decode from, if we're streaming a video file.
+    protected VideoCapture cap;
+    // Files to decode from, if we're streaming a directory of images.
+    protected File[] images;
+    // Scratch buffer for decoding when frames aren't preloaded.
+    protected Mat decoded;
+
+    // Index of the next frame to be played.
+    protected int index;
+    // When we started playing the current loop, in System.nanoTime() units.
+    protected long startTime;
+    // Recorded time of the first frame in the current loop, in milliseconds.
+    protected double firstTime;
+    // The next frame to play, picked and decoded before the camera lock is taken, or null if it hasn't been yet.
+    protected Mat pending;
+    // Recorded time of the pending frame, in milliseconds.
+    protected double pendingTime;
+    // Capture time to give the frame that was just read.
+    protected long lastTimestamp;
+    protected boolean finished;
+
+    // Frames skipped because real-time playback fell behind.
+    public long skipped;
+    // Number of times playback has looped.
+    public int loops;
+
+    public ReplayCamera(String name, Config cfg, LocalDateTime date) throws IOException {
+        super(name, cfg, date);
+        if (cfg.path == null) throw new IOException("No path was given for a replay camera");
+        File file = new File(cfg.path);
+        if (!file.exists()) throw new IOException(String.format("Replay path \"%s\" doesn't exist", cfg.path));
+        if (file.isDirectory()) {
+            images = file.listFiles((_dir, fname) -> {
+                String lower = fname.toLowerCase();
+                return Arrays.stream(imageExtensions).anyMatch(ext -> lower.endsWith(ext));
+            });
+            if (images == null || images.length == 0) throw new IOException(String.format("No images found in \"%s\"", cfg.path));
+            Arrays.sort(images);
+        } else {
+            cap = new VideoCapture(cfg.path);
+            if (!cap.isOpened()) throw new IOException(String.format("Couldn't open video \"%s\"", cfg.path));
+            if (cfg.fps <= 0) {
+                double fps = cap.get(Videoio.CAP_PROP_FPS);
+                if (fps > 0) cfg.fps = fps;
+            }
+        }
+        if (cfg.fps <= 0) cfg.fps = 30;
+        decoded = new Mat();
+        if (cfg.preload) preload(cfg);
+        log.write(String.format("Replaying %s from \"%s\"\n", frames == null ? "(streamed)" : String.format("%d frames", frames.size()), cfg.path));
+        log.flush();
+    }
+    public ReplayCamera(String name, Config cfg) throws IOException {
+        this(name, cfg, LocalDateTime.now());
+    }
+
+    // Decode everything up front.
+    protected void preload(Config cfg) {
+        frames = new ArrayList<Mat>();
+        times = new ArrayList<Double>();
+        while (cfg.maxFrames <= 0 || frames.size() < cfg.maxFrames) {
+            Mat img = new Mat();
+            double time = decodeNext(img, frames.size());
+            if (img.empty()) break;
+            frames.add(img);
+            times.add(time);
+        }
+        if (cap != null) {
+            cap.release();
+            cap = null;
+        }
+    }
+
+    // Decode the frame at index i into img, returning its recorded time in milliseconds.
+    // The image is left empty if there are no more frames.
+    protected double decodeNext(Mat img, int i) {
+        Config cfg = (Config)config;
+        double fallback = i * 1000.0 / cfg.fps;
+        if (images != null) {
+            if (i >= images.length) {
+                img.release();
+                return fallback;
+            }
+            Imgcodecs.imread(images[i].getPath()).copyTo(img);
+            return fallback;
+        }
+        if (!cap.read(img)) {
+            img.release();
+            return fallback;
+        }
+        double time = cap.get(Videoio.CAP_PROP_POS_MSEC);
+        return time > 0 || i == 0 ? time : fallback;
+    }
+
+    // Get the recorded time of a preloaded frame, making sure it's increasing.
+    protected double timeOf(int i) {
+        Config cfg = (Config)config;
+        double time = times.get(i);
+        if (i > 0 && time <= times.get(i - 1)) time = times.get(i - 1) + 1000.0 / cfg.fps;
+        times.set(i, time);
+        return time;
+    }
+
+    // Restart playback from the beginning.
+    protected void rewind() {
+        index = 0;
+        loops++;
+        if (frames == null && cap != null) cap.set(Videoio.CAP_PROP_POS_FRAMES, 0);
+    }
+
+    // Get the next frame ready and wait until it's due, without holding the camera lock, so nobody else is blocked while we wait.
+    @Override
+    protected boolean awaitReady() throws InterruptedException {
+        Config cfg = (Config)config;
+        if (pending == null) prepare();
+        if (pending != null && cfg.realtime) FramePacer.waitUntil(dueTime(pendingTime));
+        return true;
+    }
+
+    @Override
+    protected Mat readFrameRaw(Mat buf) throws Exception {
+        Config cfg = (Config)config;
+        // awaitReady() normally did this already
+        if (pending == null) prepare();
+        if (pending == null) return null;
+        Mat img = pending;
+        pending = null;
+        lastTimestamp = cfg.realtime ? dueTime(pendingTime) : System.nanoTime();
+        index++;
+        return img;
+    }
+
+    // Pick the next frame to play, decoding it if it wasn't preloaded, and make it pending.
+    // This is only called from the thread reading frames.
+    protected void prepare() {
+        Config cfg = (Config)config;
+        if (finished) return;
+        if (frames != null) {
+            if (index >= frames.size()) {
+                if (!cfg.loop || frames.isEmpty()) {
+                    finish();
+                    return;
+                }
+                rewind();
+            }
+            if (index == 0) {
+                startTime = System.nanoTime();
+                firstTime = timeOf(0);
+            }
+            if (cfg.realtime) {
+                // drop frames that we're already too late for, like a real camera would
+                while (index + 1 < frames.size() && dueTime(timeOf(index + 1)) <= System.nanoTime()) {
+                    index++;
+                    skipped++;
+                }
+            }
+            pending = frames.get(index);
+            pendingTime = timeOf(index);
+        } else {
+            double time = decodeNext(decoded, index);
+            if (decoded.empty()) {
+                if (!cfg.loop || index == 0) {
+                    finish();
+                    return;
+                }
+                rewind();
+                time = decodeNext(decoded, index);
+                if (decoded.empty()) {
+                    finish();
+                    return;
+                }
+            }
+            if (index == 0) {
+                startTime = System.nanoTime();
+                firstTime = time;
+            }
+            pending = decoded;
+            pendingTime = time;
+        }
+    }
+
+    // When a frame recorded at the given time should be played, in System.nanoTime() units.
+    private long dueTime(double time) {
+        Config cfg = (Config)config;
+        return startTime + (long)((time - firstTime) * 1000000.0 / cfg.speed);
+    }
+
+    private void finish() {
+        finished = true;
+        log.write(String.format("Replay finished after %d loops, skipped %d frames\n", loops, skipped));
+        log.flush();
+    }
+
+    @Override
+    protected long captureTimestamp() {
+        return lastTimestamp;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // Number of frames in the recording, or -1 if they weren't preloaded.
+    public int frameCount() {
+        return frames == null ? -1 : frames.size();
+    }
+
+    public static class Config extends CameraConfig {
+        // Video file or directory of images to play.
+        public String path;
+        // Whether to start over when we reach the end.
+        public boolean loop = false;
+        // Whether to play at the recorded rate, otherwise frames are played as fast as they're read.
+        public boolean realtime = true;
+        // Playback speed multiplier for real-time playback.
+        public double speed = 1.0;
+        // Whether to decode everything into memory up front.
+        public boolean preload = true;
+        // Maximum number of frames to preload, 0 means no limit.
+        public int maxFrames = 0;
+        // Frame rate to use when the recording doesn't have timestamps. Defaults to the video's rate, or 30.
+        public double fps = 0;
+    }
+
+    public static class Factory extends CameraFactory {
+        @Override
+        public Class<Config> configType() {
+            return Config.class;
+        }
+
+        @Override
+        public String typeName() {
+            return "replay";
+        }
+
+        @Override
+        public ReplayCamera create(String name, CameraConfig cfg, LocalDateTime date) throws IOException {
+            return new ReplayCamera(name, (Config)cfg, date);
+        }
+    }
+}
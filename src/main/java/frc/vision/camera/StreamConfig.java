@@ -10,11 +10,17 @@ public class StreamConfig {
         String address;
         String name;
         int fps = 30;
+        int width = -1;
+        int height = -1;
     }
     public int port = 1181;
     public String address;
     public String name;
+    // Maximum rate to stream at, independent of the capture rate.
     public int fps = 30;
+    // Resolution to stream at, defaults to the camera's resolution.
+    public int width = -1;
+    public int height = -1;
 
     public static class Deserializer implements JsonDeserializer<StreamConfig> {
         @Override
@@ -45,6 +51,8 @@ public class StreamConfig {
             out.address = sh.address;
             out.name = sh.name;
             out.fps = sh.fps;
+            out.width = sh.width;
+            out.height = sh.height;
             return out;
         }
     }
@@ -0,0 +1,284 @@
+package frc.vision.camera;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.apriltag.AprilTagPoseEstimator;
+import edu.wpi.first.math.geometry.*;
+import edu.wpi.first.util.RawFrame;
+import frc.vision.load.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+// A camera that renders tag36h11 tags at known poses, so detection and pose estimation can be checked against the truth.
+// Every frame is generated from the seed and its sequence number, so runs are repeatable.
+// The projection uses the same intrinsics as CameraConfig.poseConfig(), with no lens distortion.
+public class SyntheticTagCamera extends CameraBase {
+    // The known position of a single rendered tag.
+    public static class TagTruth {
+        public int id;
+        // Pose of the tag relative to the camera, in the same frame AprilTagPoseEstimator uses (x right, y down, z forward).
+        public Transform3d pose;
+        // Image coordinates of the corners, x0, y0, x1, y1... in the same order as AprilTagDetection.getCorners().
+        public double[] corners;
+    }
+    // Everything that was rendered in a single frame.
+    public static class Truth {
+        public long sequence;
+        public List<TagTruth> tags;
+    }
+
+    // Rendered tag images, shared between all synthetic cameras.
+    protected static ConcurrentHashMap<Integer, Mat> tagImages = new ConcurrentHashMap<>();
+
+    // Pixel coordinates of the outside of the tag's black border in our padded images, in corner order.
+    // Generated images are 10x10 with a one-pixel white border, we add another pixel of white so there's always a quiet zone.
+    // Pixel centers are at integer coordinates, and tag coordinates have y pointing down.
+    protected static final MatOfPoint2f tagImageCorners = new MatOfPoint2f(
+        new Point(1.5, 9.5),
+        new Point(9.5, 9.5),
+        new Point(9.5, 1.5),
+        new Point(1.5, 1.5)
+    );
+
+    // Number of recent frames to keep the truth for.
+    protected static final int TRUTH_HISTORY = 64;
+    // How much bigger than a frame the noise field is, so frames can take it from different offsets.
+    protected static final int NOISE_MARGIN = 64;
+
+    protected Truth[] truths;
+    protected Mat background;
+    // Gaussian noise made once from the seed, and added to each frame from a random offset,
+    // so nothing is allocated per frame and OpenCV's shared RNG is left alone.
+    protected Mat noise;
+    protected Mat noMask;
+    protected double fx;
+    protected double fy;
+    protected double cx;
+    protected double cy;
+
+    public SyntheticTagCamera(String name, Config cfg, LocalDateTime date) throws IOException {
+        super(name, cfg, date);
+        if (cfg.width <= 0 || cfg.height <= 0) throw new IOException("Synthetic cameras need a width and height");
+        AprilTagPoseEstimator.Config pose = cfg.poseConfig(log);
+        fx = pose.fx;
+        fy = pose.fy;
+        cx = pose.cx;
+        cy = pose.cy;
+        truths = new Truth[TRUTH_HISTORY];
+        noMask = new Mat();
+        background = new Mat(cfg.height, cfg.width, CvType.CV_8UC3, new Scalar(cfg.backgroundLevel, cfg.backgroundLevel, cfg.backgroundLevel));
+        if (cfg.background != null) {
+            Mat img = Imgcodecs.imread(cfg.background);
+            if (img.empty()) {
+                log.write(String.format("Couldn't read background \"%s\", using a flat one\n", cfg.background));
+                log.flush();
+            } else {
+                Imgproc.resize(img, background, background.size());
+            }
+        }
+    }
+    public SyntheticTagCamera(String name, Config cfg) throws IOException {
+        this(name, cfg, LocalDateTime.now());
+    }
+
+    // Get a tag36h11 image, as a 12x12 BGR image including two pixels of white border.
+    public static Mat tagImage(int id) {
+        return tagImages.computeIfAbsent(id, _id -> {
+            RawFrame raw = AprilTag.generate36h11AprilTagImage(id);
+            int w = raw.getWidth();
+            int h = raw.getHeight();
+            int stride = raw.getStride();
+            ByteBuffer data = raw.getDataByteBuffer();
+            byte[] row = new byte[w];
+            Mat gray = new Mat(h, w, CvType.CV_8UC1);
+            for (int y = 0; y < h; y++) {
+                data.position(y * stride);
+                data.get(row);
+                gray.put(y, 0, row);
+            }
+            raw.close();
+            Mat padded = new Mat();
+            Core.copyMakeBorder(gray, padded, 1, 1, 1, 1, Core.BORDER_CONSTANT, new Scalar(255));
+            Mat bgr = new Mat();
+            Imgproc.cvtColor(padded, bgr, Imgproc.COLOR_GRAY2BGR);
+            return bgr;
+        });
+    }
+
+    // Get what was rendered for the given frame, or null if it's too old or wasn't from this camera.
+    public Truth getTruth(long sequence) {
+        Truth t = truths[(int)(sequence % TRUTH_HISTORY)];
+        return t != null && t.sequence == sequence ? t : null;
+    }
+    public Truth getTruth(Frame frame) {
+        return getTruth(frame.getSequence());
+    }
+
+    @Override
+    protected Mat readFrameRaw(Mat buf) {
+        Config cfg = (Config)config;
+        Random rand = new Random(cfg.seed * 1000003 + sequence);
+        background.copyTo(buf);
+        Truth truth = new Truth();
+        truth.sequence = sequence;
+        truth.tags = new ArrayList<>();
+        ArrayList<Rect> used = new ArrayList<>();
+        int count = cfg.ids != null && !cfg.ids.isEmpty() ? cfg.ids.size() : cfg.tagCount;
+        for (int i = 0; i < count; i++) {
+            int id = cfg.ids != null && !cfg.ids.isEmpty() ? cfg.ids.get(i) : rand.nextInt(cfg.maxId + 1);
+            // try a few times to find a spot that doesn't overlap another tag
+            for (int attempt = 0; attempt < 20; attempt++) {
+                TagTruth tag = placeTag(id, rand, cfg);
+                if (tag == null) continue;
+                Rect bounds = Imgproc.boundingRect(new MatOfPoint(cornerPoints(tag.corners)));
+                if (used.stream().anyMatch(r -> overlaps(r, bounds))) continue;
+                used.add(bounds);
+                drawTag(buf, id, tag.corners);
+                truth.tags.add(tag);
+                break;
+            }
+        }
+        if (cfg.blur > 0) Imgproc.GaussianBlur(buf, buf, new Size(0, 0), cfg.blur);
+        if (cfg.noise > 0) {
+            Mat field = noiseField(buf.rows(), buf.cols(), cfg);
+            int dx = rand.nextInt(NOISE_MARGIN + 1);
+            int dy = rand.nextInt(NOISE_MARGIN + 1);
+            Mat window = field.submat(dy, dy + buf.rows(), dx, dx + buf.cols());
+            Core.add(buf, window, buf, noMask, CvType.CV_8UC3);
+            window.release();
+        }
+        truths[(int)(sequence % TRUTH_HISTORY)] = truth;
+        return buf;
+    }
+
+    // Get the noise field for frames of the given size, making it the first time.
+    protected Mat noiseField(int rows, int cols, Config cfg) {
+        rows += NOISE_MARGIN;
+        cols += NOISE_MARGIN;
+        if (noise == null || noise.rows() != rows || noise.cols() != cols) {
+            Random rand = new Random(cfg.seed * 31);
+            short[] data = new short[rows * cols * 3];
+            for (int i = 0; i < data.length; i++) data[i] = (short)Math.round(rand.nextGaussian() * cfg.noise);
+            noise = new Mat(rows, cols, CvType.CV_16SC3);
+            noise.put(0, 0, data);
+        }
+        return noise;
+    }
+
+    // Pick a random pose for a tag that keeps it in view, or null if it ended up off-screen.
+    protected TagTruth placeTag(int id, Random rand, Config cfg) {
+        double z = cfg.minDistance + rand.nextDouble() * (cfg.maxDistance - cfg.minDistance);
+        // pick the center in the image, with a margin, then back-project it
+        double margin = 0.1;
+        double u = config.width * (margin + rand.nextDouble() * (1 - 2 * margin));
+        double v = config.height * (margin + rand.nextDouble() * (1 - 2 * margin));
+        double x = (u - cx) * z / fx;
+        double y = (v - cy) * z / fy;
+        double roll = Math.toRadians((rand.nextDouble() * 2 - 1) * cfg.maxRoll);
+        double pitch = Math.toRadians((rand.nextDouble() * 2 - 1) * cfg.maxPitch);
+        double yaw = Math.toRadians((rand.nextDouble() * 2 - 1) * cfg.maxYaw);
+        // rotations are about the camera's x, y, and z axes, applied in that order, same as Rotation3d
+        double[] r = rotation(roll, pitch, yaw);
+        double half = cfg.tagSize / 2;
+        double[][] object = {{-half, half}, {half, half}, {half, -half}, {-half, -half}};
+        double[] corners = new double[8];
+        for (int i = 0; i < 4; i++) {
+            double ox = object[i][0];
+            double oy = object[i][1];
+            double px = r[0] * ox + r[1] * oy + x;
+            double py = r[3] * ox + r[4] * oy + y;
+            double pz = r[6] * ox + r[7] * oy + z;
+            if (pz <= 0) return null;
+            corners[i * 2] = fx * px / pz + cx;
+            corners[i * 2 + 1] = fy * py / pz + cy;
+            if (corners[i * 2] < 0 || corners[i * 2] >= config.width || corners[i * 2 + 1] < 0 || corners[i * 2 + 1] >= config.height) return null;
+        }
+        TagTruth tag = new TagTruth();
+        tag.id = id;
+        tag.pose = new Transform3d(new Translation3d(x, y, z), new Rotation3d(roll, pitch, yaw));
+        tag.corners = corners;
+        return tag;
+    }
+
+    // Row-major rotation matrix for extrinsic rotations about x, then y, then z.
+    private static double[] rotation(double roll, double pitch, double yaw) {
+        double ca = Math.cos(yaw), sa = Math.sin(yaw);
+        double cb = Math.cos(pitch), sb = Math.sin(pitch);
+        double cg = Math.cos(roll), sg = Math.sin(roll);
+        return new double[] {
+            ca * cb, ca * sb * sg - sa * cg, ca * sb * cg + sa * sg,
+            sa * cb, sa * sb * sg + ca * cg, sa * sb * cg - ca * sg,
+            -sb, cb * sg, cb * cg,
+        };
+    }
+
+    private static Point[] cornerPoints(double[] corners) {
+        return new Point[] {
+            new Point(corners[0], corners[1]),
+            new Point(corners[2], corners[3]),
+            new Point(corners[4], corners[5]),
+            new Point(corners[6], corners[7]),
+        };
+    }
+
+    private static boolean overlaps(Rect a, Rect b) {
+        return a.x < b.x + b.width && b.x < a.x + a.width && a.y < b.y + b.height && b.y < a.y + a.height;
+    }
+
+    // Warp a tag image onto the frame so its black border lands on the given corners.
+    protected static void drawTag(Mat img, int id, double[] corners) {
+        Mat tag = tagImage(id);
+        Mat h = Imgproc.getPerspectiveTransform(tagImageCorners, new MatOfPoint2f(cornerPoints(corners)));
+        // transparent borders leave everything outside of the tag alone
+        Imgproc.warpPerspective(tag, img, h, img.size(), Imgproc.INTER_NEAREST, Core.BORDER_TRANSPARENT);
+    }
+
+    public static class Config extends CameraConfig {
+        // Seed for everything random, frames are generated from this and their sequence number.
+        public long seed = 4121;
+        // Tags to render in every frame. If this isn't set, tagCount random tags are used.
+        public ArrayList<Integer> ids;
+        public int tagCount = 1;
+        // Largest random tag ID.
+        public int maxId = 16;
+        // Tag size, in the same units as poses. This should match what poseConfig() uses.
+        public double tagSize = 6.5;
+        public double minDistance = 24;
+        public double maxDistance = 120;
+        // Maximum rotations, in degrees.
+        public double maxRoll = 10;
+        public double maxPitch = 20;
+        public double maxYaw = 45;
+        // Standard deviation of the Gaussian noise added to each pixel.
+        public double noise = 0;
+        // Sigma of the Gaussian blur applied to the frame, in pixels.
+        public double blur = 0;
+        // Background image to render onto, otherwise a flat gray background is used.
+        public String background;
+        public int backgroundLevel = 128;
+    }
+
+    public static class Factory extends CameraFactory {
+        @Override
+        public Class<Config> configType() {
+            return Config.class;
+        }
+
+        @Override
+        public String typeName() {
+            return "synthetic";
+        }
+
+        @Override
+        public SyntheticTagCamera create(String name, CameraConfig cfg, LocalDateTime date) throws IOException {
+            return new SyntheticTagCamera(name, (Config)cfg, date);
+        }
+    }
+}
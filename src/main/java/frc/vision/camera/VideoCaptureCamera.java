@@ -3,34 +3,42 @@ package frc.vision.camera;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import frc.vision.load.*;
-import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.time.LocalDateTime;
-import java.util.Arrays;
 import java.util.List;
 import org.opencv.core.*;
 import org.opencv.videoio.*;
 
 public class VideoCaptureCamera extends CameraBase {
-    Mat currentFrame;
     VideoCapture cap;
-    int backoff;
-    int counter;
     boolean wasOpened;
     int failCount = 0;
+    // Whether we've lost the camera and are waiting on the reconnector to get it back.
+    volatile boolean lost;
+    // Reopens the camera in the background once it's lost, started the first time it's needed.
+    CaptureReconnector reconnector;
+    // Capture time of the last frame, in System.nanoTime() units.
+    long lastTimestamp;
+    // Whether we've already warned that the driver's timestamps aren't usable.
+    boolean warnedClock;
+    // Whether a frame was grabbed ahead of time and is waiting to be retrieved.
+    boolean grabbed;
+
+    // Driver timestamps further than this from the grab time (in nanoseconds) aren't on the monotonic clock.
+    protected static final long CLOCK_TOLERANCE = 1000000000L;
+    // Number of failed reads in a row before we decide the camera is gone.
+    protected static final int MAX_FAILS = 5;
+    // How long the capture thread parks at a time while waiting for the camera to come back, in milliseconds.
+    protected static final long RECONNECT_WAIT = 1000;
 
     public VideoCaptureCamera(String name, VideoCapture cap, CameraConfig cfg, LocalDateTime date) throws IOException {
         super(name, cfg, date);
-        this.currentFrame = new Mat();
         this.cap = cap;
-        this.backoff = 1;
         this.wasOpened = cap != null && cap.isOpened();
     }
     public VideoCaptureCamera(String name, Config cfg, LocalDateTime date) throws IOException {
         super(name, cfg, date);
-        backoff = 1;
-        currentFrame = new Mat();
         if (cfg.index != null) {
             cap = new VideoCapture(cfg.index, Videoio.CAP_V4L2);
         } else if (cfg.path != null) {
@@ -57,38 +65,115 @@ public class VideoCaptureCamera extends CameraBase {
         this(name, cfg, LocalDateTime.now());
     }
 
+    // Reopen the camera right now, on the calling thread.
+    // Normally this is left to the reconnector, which does it in the background.
     public void reload() {
-        // if (true) return;
-        if (cap == null) {
-            log.write("Reload requested but capture is null\n");
-        } else if (config instanceof Config) {
-            log.write("Reloading camera\n");
-            Config cfg = (Config)config;
+        if (!(config instanceof Config)) {
+            log.write("Reload requested but we don't know where the camera came from\n");
+            log.flush();
+            return;
+        }
+        log.write("Reloading camera\n");
+        log.flush();
+        VideoCapture fresh = openCapture();
+        if (fresh != null) swapCapture(fresh);
+    }
+
+    // Open a new capture for this camera, returning null if it isn't there.
+    // This is called from the reconnect thread, so it leaves the current capture alone.
+    protected VideoCapture openCapture() {
+        if (!(config instanceof Config)) return null;
+        Config cfg = (Config)config;
+        VideoCapture fresh = null;
+        try {
             if (cfg.index != null) {
-                cap.open(cfg.index, Videoio.CAP_V4L2);
+                fresh = new VideoCapture(cfg.index, Videoio.CAP_V4L2);
             } else if (cfg.path != null) {
-                cap.open(cfg.path, Videoio.CAP_V4L2);
+                fresh = new VideoCapture(cfg.path, Videoio.CAP_V4L2);
             } else if (cfg.port != null) {
-                try {
-                    String path = cfg.port.resolve();
-                    if (path == null) {
-                        log.write(String.format("Couldn't find a camera on port %s\n", cfg.port));
-                    } else {
-                        cap = new VideoCapture(path, Videoio.CAP_V4L2);
-                    }
-                } catch (Exception e) {
-                    log.write("Port resolution failed with an exception:\n");
-                    e.printStackTrace(log);
+                String path = cfg.port.resolve();
+                if (path == null) {
+                    log.write(String.format("Couldn't find a camera on port %s\n", cfg.port));
+                    log.flush();
+                    return null;
                 }
+                fresh = new VideoCapture(path, Videoio.CAP_V4L2);
             }
-            configureCapture();
-        } else {
-            log.write("Reload requested but we don't know where the camera came from\n");
+        } catch (Exception e) {
+            log.write("Port resolution failed with an exception:\n");
+            e.printStackTrace(log);
+            log.flush();
+            return null;
         }
-        log.flush();
+        if (fresh == null || !fresh.isOpened()) {
+            if (fresh != null) fresh.release();
+            return null;
+        }
+        if (!cfg.skipConfig) configureCapture(fresh);
+        return fresh;
+    }
+
+    // Replace our capture with a newly opened one.
+    protected void swapCapture(VideoCapture fresh) {
+        cameraLock.lock();
+        try {
+            if (cap != null) cap.release();
+            cap = fresh;
+            grabbed = false;
+            failCount = 0;
+            lost = false;
+            wasOpened = true;
+            log.write("We got the camera back!\n");
+            log.flush();
+        } finally {
+            cameraLock.unlock();
+        }
+    }
+
+    // Give up on the current capture and start reconnecting in the background.
+    protected void markLost() {
+        if (lost) return;
+        lost = true;
+        if (wasOpened) {
+            log.write("Lost the camera\n");
+            log.flush();
+            wasOpened = false;
+        }
+        if (!(config instanceof Config)) return;
+        if (reconnector == null) {
+            reconnector = new CaptureReconnector(this);
+            reconnector.start();
+            // try again as soon as a device shows up, rather than waiting out the backoff
+            PortRegistry.get().addListener(reconnector::wake);
+        }
+        reconnector.request();
+    }
+
+    // Park until the reconnector has the camera back, instead of spinning on failed reads.
+    @Override
+    protected boolean awaitReady() throws InterruptedException {
+        if (!lost) return true;
+        if (reconnector == null) {
+            // nothing's going to bring it back, but don't spin either
+            Thread.sleep(RECONNECT_WAIT);
+            return false;
+        }
+        VideoCapture fresh = reconnector.awaitCapture(RECONNECT_WAIT);
+        if (fresh == null) return false;
+        swapCapture(fresh);
+        return true;
+    }
+
+    // Get the background reconnector, or null if the camera hasn't been lost yet.
+    public CaptureReconnector getReconnector() {
+        return reconnector;
     }
 
     public void configureCapture() {
+        configureCapture(cap);
+    }
+
+    public void configureCapture(VideoCapture cap) {
         if (config instanceof Config) {
             Config cfg = (Config)config;
             if (cap != null) {
@@ -110,6 +195,7 @@ public class VideoCaptureCamera extends CameraBase {
                             log.flush();
                         }
                     }
+                    if (cfg.raw) configureRaw(cap, cfg);
                     if (cfg.width > 0) {
                         log.write(String.format("Set width to %d\n", cfg.width));
                         log.flush();
@@ -138,10 +224,53 @@ public class VideoCaptureCamera extends CameraBase {
         }
     }
 
+    // Have the capture give us MJPG or YUYV data as-is, so frames only get converted as far as the processors need.
+    protected void configureRaw(VideoCapture cap, Config cfg) {
+        encoding = Frame.Encoding.BGR;
+        Frame.Encoding target = null;
+        if (cfg.fourcc != null) {
+            if (cfg.fourcc.equalsIgnoreCase("MJPG")) target = Frame.Encoding.MJPG;
+            else if (cfg.fourcc.equalsIgnoreCase("YUYV")) target = Frame.Encoding.YUYV;
+        }
+        if (cfg.enforceSize) {
+            log.write("Resizing needs decoded frames, capturing BGR\n");
+        } else if (target == null) {
+            log.write(String.format("Raw capture needs the MJPG or YUYV fourcc, not %s\n", cfg.fourcc));
+        } else if (cap.set(Videoio.CAP_PROP_CONVERT_RGB, 0)) {
+            log.write(String.format("Capturing raw %s frames\n", target));
+            encoding = target;
+        } else {
+            log.write("Capture doesn't support raw frames, capturing BGR\n");
+        }
+        log.flush();
+    }
+
     @Override
-    public Mat readFrameRaw() {
-        if (cap == null) return null;
-        boolean ok = cap.isOpened() && cap.read(currentFrame);
+    public boolean grab() {
+        cameraLock.lock();
+        try {
+            grabbed = cap != null && cap.isOpened() && cap.grab();
+            if (grabbed) lastTimestamp = driverTimestamp(System.nanoTime());
+            return grabbed;
+        } finally {
+            cameraLock.unlock();
+        }
+    }
+
+    @Override
+    public Mat readFrameRaw(Mat buf) {
+        if (cap == null) {
+            markLost();
+            return null;
+        }
+        boolean ok = grabbed;
+        if (grabbed) {
+            grabbed = false;
+        } else {
+            ok = cap.isOpened() && cap.grab();
+            if (ok) lastTimestamp = driverTimestamp(System.nanoTime());
+        }
+        if (ok) ok = cap.retrieve(buf);
         if (ok) {
             if (!wasOpened) {
                 log.write("We got the camera back!\n");
@@ -149,27 +278,31 @@ public class VideoCaptureCamera extends CameraBase {
                 wasOpened = true;
             }
             failCount = 0;
-            backoff = 1;
-            counter = 1;
         } else {
             failCount++;
-            if (failCount > 5) {
-                if (wasOpened) {
-                    log.write("Lost the camera\n");
-                    log.flush();
-                    wasOpened = false;
-                }
-                if (counter == 0) {
-                    reload();
-                    backoff *= 2;
-                    counter = backoff;
-                } else {
-                    counter--;
-                }
-            }
+            if (failCount > MAX_FAILS) markLost();
         }
         log.flush();
-        return ok ? currentFrame : null;
+        return ok ? buf : null;
+    }
+
+    @Override
+    protected long captureTimestamp() {
+        return lastTimestamp;
+    }
+
+    // Get the driver's timestamp for the frame that was just grabbed, falling back to the grab time.
+    // V4L2 reports buffer timestamps from the monotonic clock, which is the same one System.nanoTime() uses on Linux.
+    protected long driverTimestamp(long grabTime) {
+        double ms = cap.get(Videoio.CAP_PROP_POS_MSEC);
+        if (ms <= 0) return grabTime;
+        long ts = (long)(ms * 1000000.0);
+        if (Math.abs(grabTime - ts) < CLOCK_TOLERANCE) return ts;
+        if (!warnedClock) {
+            log.write(String.format("Driver timestamp %.3fms isn't on the monotonic clock, using grab times instead\n", ms));
+            warnedClock = true;
+        }
+        return grabTime;
     }
 
     public static class Config extends CameraConfig {
@@ -182,6 +315,8 @@ public class VideoCaptureCamera extends CameraBase {
         boolean skipConfig;
 
         String fourcc;
+        // Keep frames in the capture's format and only convert what gets used, needs the fourcc to be MJPG or YUYV.
+        boolean raw;
     }
 
     public static class Factory extends CameraFactory {
@@ -221,38 +356,27 @@ public class VideoCaptureCamera extends CameraBase {
         }
         public String resolve() throws IOException {
             if (num >= 4) return null;
-            File f = new File(String.format("/sys/devices/platform/scb/fd500000.pcie/pci0000:00/0000:00:00.0/0000:01:00.0/usb1/1-1/1-1.%d/1-1.%<d:1.0/video4linux", map4[num]));
-            if (f.exists()) {
-                File[] names = f.listFiles((_dir, name) -> name.startsWith("video") && name.substring(5).matches("\\d+"));
-                Arrays.sort(names);
-                if (names.length > 0) {
-                    return "/dev/" + names[0].getName();
-                }
-            }
+            PortRegistry ports = PortRegistry.get();
+            String path = ports.resolveInterface(String.format("/sys/devices/platform/scb/fd500000.pcie/pci0000:00/0000:00:00.0/0000:01:00.0/usb1/1-1/1-1.%d/1-1.%<d:1.0", map4[num]));
+            if (path != null) return path;
             int port5 = map5[num];
-            f = new File(String.format("/sys/devices/platform/axi/1000120000.pcie/1f00%1$d00000.usb/xhci-hcd.%2$d/usb%3$d/%3$d-%4$d/%3$d-%4$d:1.0/video4linux",
+            return ports.resolveInterface(String.format("/sys/devices/platform/axi/1000120000.pcie/1f00%1$d00000.usb/xhci-hcd.%2$d/usb%3$d/%3$d-%4$d/%3$d-%4$d:1.0",
                 port5 % 2 + 2, port5 % 2, port5 % 2 * 2 + 1, port5 / 2 + 1
             ));
-            if (f.exists()) {
-                File[] names = f.listFiles((_dir, name) -> name.startsWith("video") && name.substring(5).matches("\\d+"));
-                Arrays.sort(names);
-                if (names.length > 0) {
-                    return "/dev/" + names[0].getName();
-                }
-            }
-            return null;
         }
         public String toString() {
             return String.valueOf(num);
         }
     }
-    // A hardware name for a physical port
+    // A hardware name for a physical port, either the name the driver reports, the USB port (like "1-1.2"), or a /dev/v4l link name
     public static class PortName implements Port {
         public String name;
         public PortName(String name) {
             this.name = name;
         }
-        public String resolve() throws IOException { return null; }
+        public String resolve() throws IOException {
+            return PortRegistry.get().resolveName(name);
+        }
         public String toString() {
             return String.format("\"%s\"", name);
         }
@@ -77,6 +77,12 @@ public class CameraLoader {
         types.put(factory.typeName(), factory);
     }
 
+    // Get the config for a camera, with the defaults merged in, or null if there isn't one by that name.
+    public static CameraConfig getConfig(String name) {
+        WrappedConfig wcfg = configs.get(name);
+        return wcfg == null ? null : wcfg.inner;
+    }
+
     // Load a camera with the given name.
     // TODO: give better exceptions.
     public static CameraBase load(String name, LocalDateTime date) throws IOException {
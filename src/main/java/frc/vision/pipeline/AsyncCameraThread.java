@@ -14,11 +14,16 @@ public class AsyncCameraThread extends Thread {
     // True if the most recent frame is unprocessed.
     protected AtomicBoolean ready;
     // A callback that can be run after each frame.
-    protected BiConsumer<Mat, ? super CameraBase> afterFrame;
+    // The frame is only valid for the duration of the callback unless it's retained.
+    protected BiConsumer<Frame, ? super CameraBase> afterFrame;
     // Queue of futures to be run.
     protected ConcurrentLinkedQueue<CompletableFuture<Mat>> futures;
     // Whether our loop should be running
     protected boolean running;
+    // Group that our grabs are lined up with, or null if we run on our own.
+    protected FrameSync sync;
+    // Where our frames go in the group's sets.
+    protected int syncIndex;
 
     // Create a new thread with the given camera.
     public AsyncCameraThread(CameraBase camera) {
@@ -33,15 +38,26 @@ public class AsyncCameraThread extends Thread {
     }
 
     // Set a new callback to be run after each frame.
-    public void setSingleCallback(Consumer<Mat> callback) {
+    public void setSingleCallback(Consumer<Frame> callback) {
         afterFrame = (mat, _cam) -> callback.accept(mat);
     }
 
     // Set a new callback to be run after each frame.
-    public void setCallback(BiConsumer<Mat, ? super CameraBase> callback) {
+    public void setCallback(BiConsumer<Frame, ? super CameraBase> callback) {
         afterFrame = callback;
     }
 
+    // Line this camera up with the rest of a sync group. This has to be done before the thread starts.
+    // While synced, frames go to the group's callbacks instead of ours.
+    public void setSync(FrameSync sync) {
+        this.sync = sync;
+        this.syncIndex = sync == null ? -1 : sync.indexOf(cam);
+    }
+
+    public FrameSync getSync() {
+        return sync;
+    }
+
     // Get the camera being run in this thread.
     public CameraBase getCamera() {
         return cam;
@@ -54,9 +70,12 @@ public class AsyncCameraThread extends Thread {
 
     // Run a single frame.
     public void runSingle() {
+        if (sync != null) {
+            runSynced();
+            return;
+        }
         try {
-            cam.run();
-            Mat frame = cam.getFrame();
+            Frame frame = cam.readFrame();
             if (frame == null) return;
             afterFrame.accept(frame, cam);
         } catch (Exception e) {
@@ -66,9 +85,33 @@ public class AsyncCameraThread extends Thread {
         }
     }
 
+    // Run a single frame in step with the rest of our sync group.
+    protected void runSynced() {
+        if (!sync.awaitGrab()) {
+            running = false;
+            return;
+        }
+        Frame frame = null;
+        try {
+            cam.grab();
+            // the group paces the grabs, so we don't wait again here
+            frame = cam.readFrame(false);
+        } catch (Exception e) {
+            e.printStackTrace(cam.getLog());
+            if (CameraBase.echoErrors) e.printStackTrace();
+            running = false;
+        }
+        sync.deliver(syncIndex, frame);
+    }
+
     public void run() {
         System.out.println("starting camera uwu");
-        while (running) runSingle();
+        ThreadPools.pin(cam.getConfig().cpus, cam.getLog());
+        try {
+            while (running && !cam.isFinished()) runSingle();
+        } finally {
+            if (sync != null) sync.leave();
+        }
         // running = true;
     }
 }
@@ -0,0 +1,285 @@
+package frc.vision.pipeline;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableValue;
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.CameraConfig;
+import frc.vision.camera.Frame;
+import frc.vision.camera.FramePacer;
+import frc.vision.camera.LatencyTracer;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Decides what happens to a camera's frames when processing can't keep up, and counts where every frame went.
+// Frames wait here between capture and processing, so both engines take their frames from this.
+public class Backpressure {
+    public enum Policy {
+        // Keep only the newest waiting frame, replacing any older one.
+        LATEST,
+        // Keep up to queueSize waiting frames, dropping the oldest to make room.
+        DROP_OLDEST,
+        // Make the capture thread wait for room, so the camera isn't read any faster than we can process.
+        BLOCK,
+        // Keep only the newest frame like LATEST, but slow down capture to the rate frames are actually processed.
+        THROTTLE,
+    }
+
+    // Why a frame never got published.
+    public enum Reason {
+        // A newer frame took its place while it was waiting.
+        REPLACED,
+        // The queue was full.
+        OVERFLOW,
+        // The capture thread waited for room for longer than the camera's lockTimeout.
+        TIMEOUT,
+        // It finished processing after a newer frame was already published.
+        STALE,
+    }
+
+    protected static final Reason[] REASONS = Reason.values();
+    // Network table keys for the drop counters, by reason.
+    protected static final String[] DROP_KEYS = new String[REASONS.length];
+    static {
+        for (Reason reason : REASONS) DROP_KEYS[reason.ordinal()] = "dropped_" + reason.name().toLowerCase();
+    }
+
+    // Number of frames DROP_OLDEST keeps if the camera doesn't say.
+    public static final int DEFAULT_QUEUE = 4;
+    // How often the throttle rate is adjusted.
+    protected static final long THROTTLE_WINDOW_NS = 1000000000L;
+    // How much the throttle rate goes back up each window that doesn't drop anything.
+    protected static final double THROTTLE_RECOVERY = 1.1;
+    // How often the counters are written to the camera's log.
+    protected static final long REPORT_NS = 10000000000L;
+
+    protected final CameraBase cam;
+    protected final Policy policy;
+    protected final FrameQueue queue;
+    protected final long timeoutMs;
+    protected final LatencyTracer.Histogram queueTime;
+
+    protected final AtomicLong captured;
+    protected final AtomicLong processed;
+    protected final AtomicLongArray dropped;
+
+    // Throttle state, only touched from offer(), which is only called from one thread at a time.
+    protected final double minFps;
+    protected double maxFps;
+    protected double fps;
+    protected long windowStart;
+    protected long windowCaptured;
+    protected long windowProcessed;
+    protected long windowDropped;
+
+    protected long lastReport;
+    // What was last sent to the network table, so unchanged values aren't sent again.
+    protected final long[] reportedDrops;
+    protected double reportedLimit = Double.NaN;
+
+    public Backpressure(CameraBase cam) {
+        CameraConfig cfg = cam.getConfig();
+        this.cam = cam;
+        this.policy = parsePolicy(cfg.backpressure);
+        int size = VisionLibsGroup.MAX_QUEUE;
+        if (policy == Policy.DROP_OLDEST) size = cfg.queueSize > 0 ? cfg.queueSize : DEFAULT_QUEUE;
+        else if (policy == Policy.BLOCK && cfg.queueSize > 0) size = cfg.queueSize;
+        this.queue = new FrameQueue(size);
+        this.timeoutMs = cfg.lockTimeout;
+        this.queueTime = cam.getTracer().get(LatencyTracer.QUEUE);
+        this.captured = new AtomicLong();
+        this.processed = new AtomicLong();
+        this.dropped = new AtomicLongArray(REASONS.length);
+        this.reportedDrops = new long[REASONS.length];
+        // so the first report sends every counter
+        Arrays.fill(reportedDrops, -1);
+        this.minFps = Math.max(1, cfg.minFps);
+        this.maxFps = cfg.fpsThrottle > 0 && cfg.fpsThrottle < Integer.MAX_VALUE ? cfg.fpsThrottle : -1;
+        this.fps = maxFps;
+        this.lastReport = System.nanoTime();
+    }
+
+    // Parse a policy name from a config file, defaulting to LATEST.
+    public static Policy parsePolicy(String name) {
+        if (name == null) return Policy.LATEST;
+        switch (name.toLowerCase()) {
+            case "dropoldest":
+            case "drop-oldest":
+            case "drop_oldest":
+                return Policy.DROP_OLDEST;
+            case "block":
+                return Policy.BLOCK;
+            case "throttle":
+                return Policy.THROTTLE;
+            default:
+                return Policy.LATEST;
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // Queue a captured frame, retaining it. Returns false if it was dropped instead.
+    // This is called from the capture thread, which BLOCK holds up until there's room.
+    public boolean offer(Frame frame) throws InterruptedException {
+        captured.incrementAndGet();
+        if (policy == Policy.THROTTLE) updateThrottle();
+        if (policy == Policy.BLOCK && !awaitRoom()) {
+            drop(Reason.TIMEOUT);
+            return false;
+        }
+        long before = queue.getDropped();
+        frame.setQueued(System.nanoTime());
+        queue.offer(frame);
+        // only the capture thread offers, so every drop since before was ours
+        long lost = queue.getDropped() - before;
+        if (lost > 0) drop(policy == Policy.DROP_OLDEST || policy == Policy.BLOCK ? Reason.OVERFLOW : Reason.REPLACED, lost);
+        return true;
+    }
+
+    // Wait until there's room in the queue, returning false if that took too long.
+    protected boolean awaitRoom() throws InterruptedException {
+        if (queue.size() < queue.capacity()) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMs, Integer.MAX_VALUE));
+        synchronized (this) {
+            while (queue.size() >= queue.capacity()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+        return true;
+    }
+
+    // Take the oldest waiting frame, or null if there isn't one. The caller has to release it.
+    public Frame poll() {
+        Frame out = queue.poll();
+        if (out != null) queueTime.since(out.getQueued());
+        if (out != null && policy == Policy.BLOCK) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        return out;
+    }
+
+    public Frame peek() {
+        return queue.peek();
+    }
+
+    // Count a frame that went all the way through processing, whether it was published or was stale.
+    public void finished(boolean stale) {
+        if (stale) drop(Reason.STALE);
+        else processed.incrementAndGet();
+    }
+
+    protected void drop(Reason reason) {
+        drop(reason, 1);
+    }
+    protected void drop(Reason reason, long count) {
+        dropped.addAndGet(reason.ordinal(), count);
+    }
+
+    // Release every waiting frame without counting it.
+    public void clear() {
+        queue.clear();
+    }
+
+    // Slow capture down to about the rate frames are getting processed while frames are being dropped,
+    // and speed it back up by THROTTLE_RECOVERY a window at a time once they aren't.
+    protected void updateThrottle() {
+        long now = System.nanoTime();
+        if (windowStart == 0) {
+            windowStart = now;
+            windowCaptured = captured.get();
+            windowProcessed = processed.get();
+            windowDropped = getWasted();
+            return;
+        }
+        long elapsed = now - windowStart;
+        if (elapsed < THROTTLE_WINDOW_NS) return;
+        long cap = captured.get();
+        long proc = processed.get();
+        long drop = getWasted();
+        double seconds = elapsed / 1e9;
+        double captureRate = (cap - windowCaptured) / seconds;
+        double processRate = (proc - windowProcessed) / seconds;
+        // without a configured limit, never go back up past what the camera was doing on its own
+        if (maxFps < 0 && fps < 0) maxFps = captureRate;
+        double next = fps;
+        if (drop > windowDropped) next = Math.max(minFps, processRate);
+        else if (fps > 0) next = Math.min(maxFps, fps * THROTTLE_RECOVERY);
+        if (next > 0 && Math.abs(next - fps) >= 0.5) {
+            cam.throttle(next);
+            PrintWriter log = cam.getLog();
+            log.write(String.format("Throttling capture to %.1f fps, processing %.1f of %.1f fps\n", next, processRate, captureRate));
+            log.flush();
+            fps = next;
+        }
+        windowStart = now;
+        windowCaptured = cap;
+        windowProcessed = proc;
+        windowDropped = drop;
+    }
+
+    public long getCaptured() {
+        return captured.get();
+    }
+    public long getProcessed() {
+        return processed.get();
+    }
+    public long getDropped(Reason reason) {
+        return dropped.get(reason.ordinal());
+    }
+    // Total number of frames dropped for any reason.
+    public long getDropped() {
+        long out = 0;
+        for (int i = 0; i < dropped.length(); i++) out += dropped.get(i);
+        return out;
+    }
+
+    // Number of frames that were captured but never processed. Stale frames were processed, so they don't count.
+    protected long getWasted() {
+        return getDropped() - getDropped(Reason.STALE);
+    }
+
+    // Write the counters to a network table, and to the camera's log every so often.
+    // This is called from publishing, which only ever runs one frame at a time for a camera.
+    public void report(NetworkTable table) {
+        if (table != null) {
+            table.putValue("captured", NetworkTableValue.makeInteger(getCaptured()));
+            table.putValue("processed", NetworkTableValue.makeInteger(getProcessed()));
+            table.putValue("dropped", NetworkTableValue.makeInteger(getDropped()));
+            // drops are rare, so these are only sent when they change
+            for (int i = 0; i < DROP_KEYS.length; i++) {
+                long count = dropped.get(i);
+                if (count == reportedDrops[i]) continue;
+                table.putValue(DROP_KEYS[i], NetworkTableValue.makeInteger(count));
+                reportedDrops[i] = count;
+            }
+            FramePacer pacer = cam.getPacer();
+            if (pacer != null && pacer.getFps() != reportedLimit) {
+                reportedLimit = pacer.getFps();
+                table.putValue("fps_limit", NetworkTableValue.makeDouble(reportedLimit));
+            }
+        }
+        long now = System.nanoTime();
+        if (now - lastReport < REPORT_NS) return;
+        lastReport = now;
+        PrintWriter log = cam.getLog();
+        log.write(String.format(
+            "Frames: captured %d, processed %d, dropped %d (replaced %d, overflow %d, timeout %d, stale %d)\n",
+            getCaptured(),
+            getProcessed(),
+            getDropped(),
+            getDropped(Reason.REPLACED),
+            getDropped(Reason.OVERFLOW),
+            getDropped(Reason.TIMEOUT),
+            getDropped(Reason.STALE)
+        ));
+        log.flush();
+    }
+}
@@ -0,0 +1,171 @@
+package frc.vision.pipeline;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableValue;
+import frc.vision.camera.*;
+import frc.vision.load.CameraLoader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Runs recordings through the processors as fast as they can go, instead of in real time, to check config changes against old footage.
+// Each camera plays the recording with its own config from cameras.json, through the same VisionLibsGroup a live run uses.
+// Nothing is dropped: capture blocks until there's room, and several frames are processed at once to keep every core busy.
+// Results are written to a network table that's never connected to anything, then dumped as one line of JSON per frame.
+// Like on the robot, the table keeps the last value of anything a processor didn't write for a frame.
+public class BatchRunner {
+    // Subtables that VisionLibsGroup writes its own counters to, rather than results.
+    protected static final Set<String> SKIPPED_TABLES = Set.of("frames", "telemetry");
+
+    protected static class Stats {
+        long read;
+        long published;
+    }
+
+    protected final VisionLibsGroup procs;
+    protected final NetworkTable table;
+    protected final Writer out;
+    protected final Gson gson;
+    protected final ArrayList<AsyncCameraThread> cams;
+    protected final LinkedHashMap<CameraBase, Stats> stats;
+    protected long elapsed;
+
+    public BatchRunner(VisionLibsGroup procs, NetworkTable table, Writer out) {
+        this.procs = procs;
+        this.table = table;
+        this.out = out;
+        this.gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+        this.cams = new ArrayList<>();
+        this.stats = new LinkedHashMap<>();
+        procs.setResultCallback(this::writeResults);
+    }
+
+    // Make a config that plays a recording with everything else taken from a camera in cameras.json.
+    public static ReplayCamera.Config replayConfig(String name, String path) throws IOException {
+        CameraConfig from = CameraLoader.getConfig(name);
+        if (from == null) throw new IOException(String.format("No camera named \"%s\" in the config", name));
+        ReplayCamera.Config cfg = new ReplayCamera.Config();
+        cfg.type = "replay";
+        cfg.updateFrom(from);
+        if (from.vlibs != null) cfg.vlibs = new ArrayList<>(from.vlibs);
+        cfg.calibration = from.calibration;
+        cfg.cropBottom = from.cropBottom;
+        cfg.enforceSize = from.enforceSize;
+        cfg.offsetX = from.offsetX;
+        cfg.offsetY = from.offsetY;
+        cfg.offsetZ = from.offsetZ;
+        cfg.path = path;
+        cfg.realtime = false;
+        cfg.loop = false;
+        // matches are too long to hold in memory
+        cfg.preload = false;
+        cfg.fpsThrottle = Integer.MAX_VALUE;
+        cfg.backpressure = "block";
+        if (cfg.maxInFlight < 0) cfg.maxInFlight = Runtime.getRuntime().availableProcessors();
+        if (cfg.queueSize < 0) cfg.queueSize = cfg.maxInFlight;
+        // trace over the whole run, it's reported once at the end
+        if (cfg.traceInterval != 0) cfg.traceInterval = Double.POSITIVE_INFINITY;
+        return cfg;
+    }
+
+    // Add a camera that plays a recording, with the config of the camera by that name.
+    public void add(String name, String path, LocalDateTime date) throws IOException {
+        add(new ReplayCamera(name, replayConfig(name, path), date));
+    }
+
+    public void add(CameraBase cam) {
+        AsyncCameraThread thread = new AsyncCameraThread(cam);
+        Stats stat = new Stats();
+        thread.setCallback((frame, cam_) -> {
+            stat.read++;
+            procs.accept(frame, cam_);
+        });
+        cams.add(thread);
+        stats.put(cam, stat);
+    }
+
+    // Play every recording to the end, and wait for all of their frames to be published.
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        for (AsyncCameraThread cam : cams) cam.start();
+        for (AsyncCameraThread cam : cams) cam.join();
+        while (procs.isRunning()) Thread.sleep(1);
+        elapsed = System.nanoTime() - start;
+    }
+
+    // Write one frame's results, from the table the processors just wrote them to.
+    protected void writeResults(Frame frame, CameraBase cam) {
+        JsonObject line = new JsonObject();
+        line.addProperty("camera", cam.getName());
+        line.addProperty("frame", frame.getSequence());
+        line.add("results", dump(table.getSubTable(cam.getName()), true));
+        String json = gson.toJson(line);
+        synchronized (out) {
+            stats.get(cam).published++;
+            try {
+                out.write(json);
+                out.write('\n');
+            } catch (IOException e) {
+                e.printStackTrace(cam.getLog());
+                cam.getLog().flush();
+                if (CameraBase.echoErrors) e.printStackTrace();
+            }
+        }
+    }
+
+    protected JsonObject dump(NetworkTable table, boolean top) {
+        JsonObject out = new JsonObject();
+        for (String key : table.getKeys()) {
+            NetworkTableValue value = table.getValue(key);
+            if (value.isValid()) out.add(key, gson.toJsonTree(value.getValue()));
+        }
+        for (String sub : table.getSubTables()) {
+            if (top && SKIPPED_TABLES.contains(sub)) continue;
+            out.add(sub, dump(table.getSubTable(sub), false));
+        }
+        return out;
+    }
+
+    // Get the throughput of the run, and where each camera's frames spent their time.
+    public String summary() {
+        StringWriter buf = new StringWriter();
+        PrintWriter summary = new PrintWriter(buf);
+        double seconds = elapsed / 1e9;
+        long total = 0;
+        summary.write(String.format("Batch run took %.2fs\n", seconds));
+        List<CameraBase> list = new ArrayList<>(stats.keySet());
+        for (CameraBase cam : list) {
+            Stats stat = stats.get(cam);
+            total += stat.published;
+            summary.write(String.format(
+                "%s: read %d frames, published %d, %.1f fps\n",
+                cam.getName(),
+                stat.read,
+                stat.published,
+                stat.published / seconds
+            ));
+            cam.getTracer().flush(null, summary);
+        }
+        summary.write(String.format("Total: %d frames from %d cameras, %.1f fps\n", total, list.size(), total / seconds));
+        summary.flush();
+        return buf.toString();
+    }
+
+    public void cancel() {
+        for (AsyncCameraThread cam : cams) cam.cancel();
+        procs.cancel();
+    }
+
+    public void flushLogs() {
+        for (AsyncCameraThread cam : cams) cam.getCamera().getLog().flush();
+    }
+}
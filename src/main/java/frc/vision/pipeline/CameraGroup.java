@@ -5,16 +5,24 @@ import frc.vision.load.CameraLoader;
 import edu.wpi.first.networktables.NetworkTableInstance;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import org.opencv.core.Mat;
 
 public class CameraGroup {
     protected ArrayList<AsyncCameraThread> cams;
+    // Sync groups, by name, built from the cameras' configs when the group is finalized.
+    protected LinkedHashMap<String, FrameSync> syncs;
+    protected BiConsumer<Frame, CameraBase> callback;
+    protected Consumer<FrameSet> setCallback;
     protected boolean finished;
 
     public CameraGroup() {
         cams = new ArrayList<AsyncCameraThread>();
+        syncs = new LinkedHashMap<String, FrameSync>();
     }
 
     // Run the finalization for all cameras.
@@ -22,9 +30,38 @@ public class CameraGroup {
         for (AsyncCameraThread cam : cams) {
             cam.getCamera().postInit();
         }
+        buildSyncs();
         finished = true;
     }
 
+    // Line up cameras that share a sync group.
+    // A group with only one camera in it doesn't need any syncing, so it just runs on its own.
+    protected void buildSyncs() {
+        LinkedHashMap<String, List<AsyncCameraThread>> groups = new LinkedHashMap<>();
+        for (AsyncCameraThread cam : cams) {
+            String group = cam.getCamera().getConfig().syncGroup;
+            if (group != null) groups.computeIfAbsent(group, _k -> new ArrayList<>()).add(cam);
+        }
+        for (var entry : groups.entrySet()) {
+            List<AsyncCameraThread> members = entry.getValue();
+            if (members.size() < 2) continue;
+            FrameSync sync = new FrameSync(entry.getKey(), members.stream().map(c -> c.getCamera()).collect(Collectors.toList()));
+            if (callback != null) sync.setCallback(callback);
+            if (setCallback != null) sync.setSetCallback(setCallback);
+            for (AsyncCameraThread cam : members) {
+                cam.setSync(sync);
+                cam.getCamera().getLog().write(String.format("Synced with group \"%s\" of %d cameras\n", entry.getKey(), members.size()));
+                cam.getCamera().getLog().flush();
+            }
+            syncs.put(entry.getKey(), sync);
+        }
+    }
+
+    // Get the sync groups, once the group has been finalized.
+    public Stream<FrameSync> getSyncs() {
+        return syncs.values().stream();
+    }
+
     // Make camera streams visible on network tables.
     public void publishStreams(NetworkTableInstance nt) {
         for (AsyncCameraThread cam : cams) {
@@ -81,8 +118,16 @@ public class CameraGroup {
         return false;
     }
 
-    public void setCallback(BiConsumer<Mat, CameraBase> callback) {
+    public void setCallback(BiConsumer<Frame, CameraBase> callback) {
+        this.callback = callback;
         for (AsyncCameraThread cam : cams) cam.setCallback(callback);
+        for (FrameSync sync : syncs.values()) sync.setCallback(callback);
+    }
+
+    // Set a callback to be run with each set of frames from a sync group.
+    public void setSetCallback(Consumer<FrameSet> callback) {
+        this.setCallback = callback;
+        for (FrameSync sync : syncs.values()) sync.setSetCallback(callback);
     }
 
     // Start all of the camera threads.
@@ -0,0 +1,191 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.FrameView;
+import frc.vision.process.ProcessorConfig;
+import frc.vision.process.VisionProcessor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import org.opencv.core.Rect;
+
+// The processors a camera runs, compiled once into flat arrays so dispatching a frame doesn't have to look anything up.
+// Everything here is indexed by a processor's position in procs.
+public class ExecutionPlan {
+    // Processors this camera runs, in the order they were loaded.
+    public final VisionProcessor[] procs;
+    // First slot each processor keeps this camera's state in, from VisionProcessor.slotsFor(), see slot().
+    public final int[] slots;
+    // Dependencies of each processor, by the names it gave them.
+    public final List<Map<String, VisionProcessor>> deps;
+    // Part of the frame each processor looks at, or null for all of it.
+    public final Rect[] regions;
+    // Processors that can run at the same time, in order. Each one only depends on processors in earlier stages.
+    public final int[][] stages;
+    // Where each processor runs, from its pool or the camera's.
+    public final Executor[] execs;
+    // Where everything else for this camera runs, like publishing results.
+    public final Executor exec;
+    // Number of frames that can be in flight at once.
+    public final int depth;
+
+    protected ExecutionPlan(VisionProcessor[] procs, int[] slots, List<Map<String, VisionProcessor>> deps, Rect[] regions, int[][] stages, Executor[] execs, Executor exec, int depth) {
+        this.procs = procs;
+        this.slots = slots;
+        this.deps = deps;
+        this.regions = regions;
+        this.stages = stages;
+        this.execs = execs;
+        this.exec = exec;
+        this.depth = depth;
+    }
+
+    // Get the state slot for a processor, for the frame in a given in-flight slot.
+    public int slot(int proc, int frameSlot) {
+        return slots[proc] < 0 ? -1 : slots[proc] + frameSlot;
+    }
+
+    // Compile the plan for a camera out of all of the loaded processors.
+    // Missing dependencies, dependencies the camera doesn't run, and dependency cycles are written to the camera's log.
+    // Processors stuck in a cycle are left out of the plan.
+    // Anything without a pool runs on fallback.
+    public static ExecutionPlan compile(List<VisionProcessor> all, CameraBase cam, Executor fallback) {
+        PrintWriter log = cam.getLog();
+        Executor exec = cam.getConfig().pool == null ? fallback : ThreadPools.get(cam.getConfig().pool, fallback, log);
+        Collection<String> vlibs = cam.getConfig().vlibs;
+        int depth = Math.max(1, cam.getConfig().maxInFlight);
+        ArrayList<VisionProcessor> active = new ArrayList<>();
+        HashMap<String, Integer> byName = new HashMap<>();
+        for (VisionProcessor proc : all) {
+            if (vlibs != null && !vlibs.contains(proc.getName())) continue;
+            byName.put(proc.getName(), active.size());
+            active.add(proc);
+        }
+
+        int n = active.size();
+        VisionProcessor[] procs = active.toArray(new VisionProcessor[n]);
+        int[] slots = new int[n];
+        List<Map<String, VisionProcessor>> deps = new ArrayList<>(n);
+        Rect[] regions = new Rect[n];
+        Executor[] execs = new Executor[n];
+        // indices of the processors that each one has to wait for
+        ArrayList<ArrayList<Integer>> waitsOn = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            VisionProcessor proc = procs[i];
+            ProcessorConfig cfg = proc.getConfig();
+            slots[i] = proc.slotsFor(cam, depth);
+            regions[i] = regionFor(cam, proc);
+            execs[i] = cfg == null || cfg.pool == null ? exec : ThreadPools.get(cfg.pool, exec, log);
+            ArrayList<Integer> waits = new ArrayList<>();
+            Map<String, VisionProcessor> resolved = null;
+            if (cfg != null && cfg.deps != null && !cfg.deps.isEmpty()) {
+                resolved = new HashMap<>();
+                for (var entry : cfg.deps.entrySet()) {
+                    Integer idx = byName.get(entry.getValue());
+                    if (idx == null) {
+                        // processors this camera doesn't run are left out, like they already finished, but that's probably a config mistake
+                        boolean loaded = all.stream().anyMatch(other -> other.getName().equals(entry.getValue()));
+                        if (loaded) {
+                            log.write(String.format("%s depends on \"%s\", which this camera doesn't run, so it won't wait for it\n", proc.getName(), entry.getValue()));
+                        } else {
+                            log.write(String.format("%s refers to missing processor \"%s\"\n", proc.getName(), entry.getValue()));
+                        }
+                        continue;
+                    }
+                    resolved.put(entry.getKey(), procs[idx]);
+                    if (idx != i) waits.add(idx);
+                }
+                resolved = Collections.unmodifiableMap(resolved);
+            }
+            deps.add(resolved);
+            waitsOn.add(waits);
+        }
+
+        // peel off everything that isn't waiting on anything left, one stage at a time
+        ArrayList<int[]> stages = new ArrayList<>();
+        boolean[] placed = new boolean[n];
+        int left = n;
+        while (left > 0) {
+            ArrayList<Integer> stage = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (placed[i]) continue;
+                boolean ready = true;
+                for (int d : waitsOn.get(i)) if (!placed[d]) ready = false;
+                if (ready) stage.add(i);
+            }
+            if (stage.isEmpty()) break;
+            for (int i : stage) placed[i] = true;
+            left -= stage.size();
+            stages.add(stage.stream().mapToInt(i -> i).toArray());
+        }
+        if (left > 0) {
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                if (placed[i]) continue;
+                if (names.length() > 0) names.append(", ");
+                names.append(procs[i].getName());
+            }
+            log.write(String.format("Cycle in processor dependencies, not running: %s\n", names));
+            // leave them out entirely, so they don't publish or draw results they never made
+            int[] index = new int[n];
+            int kept = 0;
+            for (int i = 0; i < n; i++) index[i] = placed[i] ? kept++ : -1;
+            VisionProcessor[] keptProcs = new VisionProcessor[kept];
+            int[] keptSlots = new int[kept];
+            List<Map<String, VisionProcessor>> keptDeps = new ArrayList<>(kept);
+            Rect[] keptRegions = new Rect[kept];
+            Executor[] keptExecs = new Executor[kept];
+            for (int i = 0; i < n; i++) {
+                if (!placed[i]) continue;
+                keptProcs[index[i]] = procs[i];
+                keptSlots[index[i]] = slots[i];
+                keptDeps.add(deps.get(i));
+                keptRegions[index[i]] = regions[i];
+                keptExecs[index[i]] = execs[i];
+            }
+            for (int[] stage : stages) {
+                for (int j = 0; j < stage.length; j++) stage[j] = index[stage[j]];
+            }
+            procs = keptProcs;
+            slots = keptSlots;
+            deps = keptDeps;
+            regions = keptRegions;
+            execs = keptExecs;
+        }
+        log.flush();
+
+        return new ExecutionPlan(procs, slots, deps, regions, stages.toArray(new int[stages.size()][]), execs, exec, depth);
+    }
+
+    // Get the part of the frame that a processor should look at on a camera, or null for all of it.
+    protected static Rect regionFor(CameraBase cam, VisionProcessor proc) {
+        Rect camRoi = cam.getConfig().regionOfInterest();
+        Rect procRoi = proc.getConfig() == null ? null : proc.getConfig().roi;
+        if (camRoi == null) return procRoi;
+        if (procRoi == null) return camRoi;
+        return FrameView.intersect(camRoi, procRoi);
+    }
+
+    // Number of processors that will actually run.
+    public int size() {
+        int out = 0;
+        for (int[] stage : stages) out += stage.length;
+        return out;
+    }
+
+    // Get the names of the processors in this plan, for logging.
+    public String names() {
+        if (procs.length == 0) return "<none>";
+        StringBuilder out = new StringBuilder();
+        for (VisionProcessor proc : procs) {
+            if (out.length() > 0) out.append(", ");
+            out.append(proc.getName());
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.Frame;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free, bounded queue of frames, for handing frames from a capture thread to whoever processes them.
+ *
+ * Any number of threads can offer and poll at once. Each cell has a sequence number saying whose turn it is,
+ * so producers and consumers only ever CAS the tail and head counters and never block each other.
+ *
+ * Frames are never copied. Offering a frame retains it, and the reference the queue held passes to whoever polls it,
+ * who gives the buffer back to its pool by releasing it.
+ * If the queue is full, the oldest frame is released and dropped to make room, so the newest frame always gets in.
+ */
+public class FrameQueue extends AbstractQueue<Frame> {
+    protected final AtomicReferenceArray<Frame> elems;
+    // For a cell at position pos: pos means it's free to write, pos + 1 means it holds a frame to read.
+    protected final AtomicLongArray sequences;
+    protected final int capacity;
+    // Number of cells, which has to be at least 2 or a full cell would look free for the next lap.
+    protected final int cells;
+    // Next position to read from and write to. These only ever go up.
+    protected final AtomicLong head;
+    protected final AtomicLong tail;
+    // Frames that were thrown out because the queue was full.
+    protected final AtomicLong dropped;
+
+    public FrameQueue(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        this.capacity = capacity;
+        this.cells = Math.max(2, capacity);
+        this.elems = new AtomicReferenceArray<>(cells);
+        this.sequences = new AtomicLongArray(cells);
+        for (int i = 0; i < cells; i++) sequences.set(i, i);
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // Number of frames that have been dropped to make room for newer ones.
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // This is only a snapshot, frames can come and go while it's being read.
+    @Override
+    public int size() {
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (h != head.get()) continue;
+            long len = t - h;
+            return (int)Math.max(0, Math.min(len, capacity));
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Add a frame, dropping the oldest one if there's no room. This always succeeds.
+    @Override
+    public boolean offer(Frame elem) {
+        if (elem == null) throw new NullPointerException();
+        elem.retain();
+        while (!tryOffer(elem)) {
+            Frame old = poll();
+            if (old != null) {
+                old.release();
+                dropped.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    // Add a frame that's already been retained, returning false if the queue was full.
+    protected boolean tryOffer(Frame elem) {
+        while (true) {
+            long pos = tail.get();
+            if (pos - head.get() >= capacity) return false;
+            int idx = (int)(pos % cells);
+            long seq = sequences.get(idx);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elems.set(idx, elem);
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+            } else if (seq < pos) {
+                // the cell still holds a frame from the last lap, so we're full
+                return false;
+            }
+            // otherwise another producer got this position first, try the next one
+        }
+    }
+
+    // Take the oldest frame, or null if there isn't one. The caller has to release it.
+    @Override
+    public Frame poll() {
+        while (true) {
+            long pos = head.get();
+            int idx = (int)(pos % cells);
+            long seq = sequences.get(idx);
+            if (seq == pos + 1) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Frame out = elems.getAndSet(idx, null);
+                    sequences.set(idx, pos + cells);
+                    return out;
+                }
+            } else if (seq <= pos) {
+                // nothing written here yet, so we're empty
+                return null;
+            }
+            // otherwise another consumer got this position first, try the next one
+        }
+    }
+
+    // Look at the oldest frame without taking it.
+    // The frame isn't retained, so another thread can poll and release it at any time. This is mostly useful for checking for null.
+    @Override
+    public Frame peek() {
+        while (true) {
+            long pos = head.get();
+            int idx = (int)(pos % cells);
+            long seq = sequences.get(idx);
+            if (seq <= pos) return null;
+            if (seq != pos + 1) continue;
+            Frame out = elems.get(idx);
+            // make sure nobody took it while we were looking
+            if (head.get() == pos) return out;
+        }
+    }
+
+    // Release and remove every frame.
+    @Override
+    public void clear() {
+        Frame f;
+        while ((f = poll()) != null) f.release();
+    }
+
+    // Iterate over a snapshot of the frames, oldest first, without taking them.
+    // Like peek(), the frames aren't retained, and removing through the iterator isn't supported.
+    @Override
+    public Iterator<Frame> iterator() {
+        ArrayList<Frame> snapshot = new ArrayList<>(capacity);
+        long h = head.get();
+        long t = tail.get();
+        for (long pos = h; pos < t && pos < h + capacity; pos++) {
+            int idx = (int)(pos % cells);
+            if (sequences.get(idx) != pos + 1) continue;
+            Frame f = elems.get(idx);
+            if (f != null) snapshot.add(f);
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
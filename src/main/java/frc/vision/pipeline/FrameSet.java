@@ -0,0 +1,64 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.*;
+
+// Frames from a synchronized group of cameras that were all grabbed at the same moment.
+// Like single frames, these are only valid for the duration of the callback they're given in, unless the frames are retained.
+public class FrameSet {
+    // Sequence number of this set, counting up from zero for each group.
+    protected long sequence;
+    // Cameras in the group, in the order they were added.
+    protected CameraBase[] cams;
+    // Frames from each camera, null where a camera didn't get a frame this time.
+    protected Frame[] frames;
+
+    public FrameSet(long sequence, CameraBase[] cams, Frame[] frames) {
+        this.sequence = sequence;
+        this.cams = cams;
+        this.frames = frames;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int size() {
+        return cams.length;
+    }
+
+    public CameraBase getCamera(int i) {
+        return cams[i];
+    }
+
+    public Frame getFrame(int i) {
+        return frames[i];
+    }
+
+    // Get the frame from the camera with the given name, or null if there wasn't one.
+    public Frame get(String name) {
+        for (int i = 0; i < cams.length; i++) {
+            if (cams[i].getName().equals(name)) return frames[i];
+        }
+        return null;
+    }
+
+    // Whether every camera got a frame.
+    public boolean isComplete() {
+        for (Frame frame : frames) {
+            if (frame == null) return false;
+        }
+        return true;
+    }
+
+    // Get the spread between the earliest and latest capture times in this set, in nanoseconds.
+    public long skew() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Frame frame : frames) {
+            if (frame == null) continue;
+            min = Math.min(min, frame.getTimestamp());
+            max = Math.max(max, frame.getTimestamp());
+        }
+        return max < min ? 0 : max - min;
+    }
+}
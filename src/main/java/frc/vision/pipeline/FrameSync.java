@@ -0,0 +1,142 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.*;
+import java.util.List;
+import java.util.concurrent.Phaser;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Lines up the capture threads of a group of cameras so their frames are taken at the same moment.
+// Every round, each thread waits for the rest of the group, they all grab at once, retrieve and decode in parallel,
+// and then the last one to finish hands off all of the frames together as a FrameSet.
+public class FrameSync {
+    protected String name;
+    protected CameraBase[] cams;
+    // Frames delivered so far this round, retained until the set is handed off.
+    protected Frame[] frames;
+    // Even phases wait to grab, odd phases wait for every frame to be delivered.
+    protected Phaser phaser;
+    // Paces grabs for the whole group, or null if we go as fast as the slowest camera.
+    protected FramePacer pacer;
+    // Slowest configured throttle in the group, or Integer.MAX_VALUE if there isn't one.
+    protected double fps;
+    protected long sequence;
+
+    // Callback run for each frame in a set, after the whole set has been captured.
+    protected BiConsumer<Frame, ? super CameraBase> afterFrame;
+    // Callback run with the whole set.
+    protected Consumer<FrameSet> afterSet;
+
+    // Capture time spread of the last set, and the largest one so far, in nanoseconds.
+    protected volatile long lastSkew;
+    protected volatile long maxSkew;
+
+    public FrameSync(String name, List<CameraBase> cams) {
+        this.name = name;
+        this.cams = cams.toArray(new CameraBase[0]);
+        this.frames = new Frame[this.cams.length];
+        this.afterFrame = (_frame, _cam) -> {};
+        this.fps = Integer.MAX_VALUE;
+        for (CameraBase cam : this.cams) {
+            if (cam.getConfig().fpsThrottle > 0) this.fps = Math.min(this.fps, cam.getConfig().fpsThrottle);
+        }
+        if (this.fps < Integer.MAX_VALUE) this.pacer = new FramePacer(this.fps);
+        this.phaser = new Phaser(this.cams.length) {
+            @Override
+            protected boolean onAdvance(int phase, int parties) {
+                if (parties == 0) return true;
+                if (phase % 2 == 0) pace();
+                else dispatch();
+                return false;
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Get where a camera's frames go in our sets, or -1 if it isn't part of this group.
+    public int indexOf(CameraBase cam) {
+        for (int i = 0; i < cams.length; i++) {
+            if (cams[i] == cam) return i;
+        }
+        return -1;
+    }
+
+    public void setCallback(BiConsumer<Frame, ? super CameraBase> callback) {
+        afterFrame = callback;
+    }
+
+    public void setSetCallback(Consumer<FrameSet> callback) {
+        afterSet = callback;
+    }
+
+    // Wait for the rest of the group to be ready to grab.
+    // Returns false if everyone else has already left.
+    public boolean awaitGrab() {
+        return phaser.arriveAndAwaitAdvance() >= 0;
+    }
+
+    // Hand over the frame a camera read this round, which may be null if it failed, and wait for the rest of the set.
+    public void deliver(int index, Frame frame) {
+        frames[index] = frame == null ? null : frame.retain();
+        phaser.arriveAndAwaitAdvance();
+    }
+
+    // Stop taking part in the group, so the others don't wait on a camera that's gone.
+    public void leave() {
+        phaser.arriveAndDeregister();
+    }
+
+    public long getLastSkew() {
+        return lastSkew;
+    }
+
+    public long getMaxSkew() {
+        return maxSkew;
+    }
+
+    // Run by the last thread to get to the grab barrier, before anyone is let through.
+    // Synced cameras read without their own pacers, so when backpressure throttles one of them, the whole group slows down to match.
+    private void pace() {
+        double target = fps;
+        for (CameraBase cam : cams) {
+            FramePacer own = cam.getPacer();
+            if (own != null) target = Math.min(target, own.getFps());
+        }
+        if (target < Integer.MAX_VALUE) {
+            if (pacer == null) pacer = new FramePacer(target);
+            else if (pacer.getFps() != target) pacer.setFps(target);
+        }
+        if (pacer == null) return;
+        try {
+            pacer.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Run by the last thread to deliver a frame, before anyone is let through.
+    private void dispatch() {
+        FrameSet set = new FrameSet(sequence++, cams, frames.clone());
+        long skew = set.skew();
+        lastSkew = skew;
+        if (skew > maxSkew) maxSkew = skew;
+        try {
+            for (int i = 0; i < cams.length; i++) {
+                if (frames[i] != null) afterFrame.accept(frames[i], cams[i]);
+            }
+            if (afterSet != null) afterSet.accept(set);
+        } catch (Exception e) {
+            e.printStackTrace(cams[0].getLog());
+            cams[0].getLog().flush();
+            if (CameraBase.echoErrors) e.printStackTrace();
+        } finally {
+            for (int i = 0; i < frames.length; i++) {
+                if (frames[i] != null) frames[i].release();
+                frames[i] = null;
+            }
+        }
+    }
+}
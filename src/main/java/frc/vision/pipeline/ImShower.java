@@ -8,25 +8,41 @@ import org.opencv.highgui.HighGui;
 
 // Wrapper to handle the multi-threaded stuff for imshow
 public class ImShower implements BiConsumer<Mat, CameraBase>, Runnable {
-    protected ConcurrentHashMap<String, Mat> frames;
+    // Frames are copied into a pending buffer by the processing threads, then into a shown buffer by the main thread.
+    // HighGui only converts the image in waitKey(), so the shown buffer has to stay untouched until then.
+    protected static class Buffers {
+        Mat pending = new Mat();
+        Mat shown = new Mat();
+        boolean fresh;
+    }
+    protected ConcurrentHashMap<String, Buffers> frames;
     protected boolean calledOnce;
 
     public ImShower() {
-        frames = new ConcurrentHashMap<String, Mat>();
+        frames = new ConcurrentHashMap<String, Buffers>();
         calledOnce = false;
     }
 
     // Accept a frame with the given name
     @Override
     public void accept(Mat frame, CameraBase cam) {
-        frames.put(cam.getName(), frame);
+        Buffers bufs = frames.computeIfAbsent(cam.getName(), _name -> new Buffers());
+        synchronized (bufs) {
+            frame.copyTo(bufs.pending);
+            bufs.fresh = true;
+        }
     }
 
     // Show all of the frames
     @Override
     public void run() {
-        frames.forEach((name, frame) -> {
-            HighGui.imshow(name, frame);
+        frames.forEach((name, bufs) -> {
+            synchronized (bufs) {
+                if (!bufs.fresh) return;
+                bufs.pending.copyTo(bufs.shown);
+                bufs.fresh = false;
+            }
+            HighGui.imshow(name, bufs.shown);
             calledOnce = true;
         });
     }
@@ -0,0 +1,118 @@
+package frc.vision.pipeline;
+
+// Puts a camera's results out in the order its frames were captured, when more than one frame is processed at once.
+// Each frame in flight has a slot. Frames can finish in any order, but a frame is only published once every older frame in flight is done.
+// A frame that's older than one that was already published is stale, and gets thrown out instead, so old results never replace newer ones.
+// Everything is preallocated, so none of this allocates per frame.
+public class PublishOrder {
+    // Something that can publish (or throw out) the frame in a slot, and then free the slot.
+    public interface Publisher {
+        void publish(int slot, boolean stale);
+    }
+
+    // Capture sequence of the frame in each slot.
+    protected final long[] sequences;
+    protected final boolean[] inFlight;
+    protected final boolean[] done;
+    // Sequence of the newest frame that's been published.
+    protected long lastPublished;
+    // Whether someone is already publishing, so everything else just leaves its frame for them.
+    protected boolean draining;
+
+    // Number of frames that were thrown out for being older than something already published.
+    protected long stale;
+
+    public PublishOrder(int depth) {
+        sequences = new long[depth];
+        inFlight = new boolean[depth];
+        done = new boolean[depth];
+        lastPublished = Long.MIN_VALUE;
+    }
+
+    public int depth() {
+        return sequences.length;
+    }
+
+    // Take a slot that isn't in flight, or return -1 if they all are.
+    // The slot doesn't hold anyone up until start() gives it a frame, and it can be given back with cancel().
+    public synchronized int reserve() {
+        for (int i = 0; i < inFlight.length; i++) {
+            if (!inFlight[i]) {
+                inFlight[i] = true;
+                done[i] = false;
+                sequences[i] = Long.MAX_VALUE;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Give back a reserved slot that didn't get a frame.
+    public synchronized void cancel(int slot) {
+        inFlight[slot] = false;
+    }
+
+    // Number of slots that are in flight.
+    public synchronized int running() {
+        int out = 0;
+        for (boolean b : inFlight) if (b) out++;
+        return out;
+    }
+
+    // Set the capture sequence of the frame in a reserved slot.
+    public synchronized void start(int slot, long sequence) {
+        sequences[slot] = sequence;
+    }
+
+    // Mark the frame in a slot as done, and publish everything that's ready.
+    // Publishing happens on whichever thread gets here first, one frame at a time, and the slot is only freed after it's published.
+    // Slots can be freed by this, so callers should try to start another frame afterwards.
+    // If publishing a frame throws, the rest are still published, and the first exception is thrown at the end.
+    public void finish(int slot, Publisher publisher) {
+        synchronized (this) {
+            done[slot] = true;
+            if (draining) return;
+            draining = true;
+        }
+        RuntimeException error = null;
+        while (true) {
+            int next = -1;
+            boolean isStale;
+            synchronized (this) {
+                // the oldest finished frame can go out if nothing older is still running
+                for (int i = 0; i < done.length; i++) {
+                    if (done[i] && (next < 0 || sequences[i] < sequences[next])) next = i;
+                }
+                if (next >= 0) {
+                    for (int i = 0; i < inFlight.length; i++) {
+                        if (inFlight[i] && !done[i] && sequences[i] < sequences[next]) next = -1;
+                        if (next < 0) break;
+                    }
+                }
+                if (next < 0) {
+                    draining = false;
+                    break;
+                }
+                isStale = sequences[next] < lastPublished;
+                if (isStale) stale++;
+                else lastPublished = sequences[next];
+                done[next] = false;
+            }
+            try {
+                publisher.publish(next, isStale);
+            } catch (RuntimeException e) {
+                // keep going, or the frames behind this one would never go out
+                if (error == null) error = e;
+            } finally {
+                synchronized (this) {
+                    inFlight[next] = false;
+                }
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    public synchronized long getStale() {
+        return stale;
+    }
+}
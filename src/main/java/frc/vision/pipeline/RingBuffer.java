@@ -1,21 +1,24 @@
 package frc.vision.pipeline;
 
+import frc.vision.camera.Frame;
 import java.util.AbstractQueue;
 import java.util.Iterator;
-import org.opencv.core.Mat;
+import java.util.NoSuchElementException;
 
 /**
- * A queue based on a circular buffer.
+ * A queue of frames based on a circular buffer, with every method locked.
  *
- * If the capacity is exceeded, the oldest elements are removed. Note that this doesn't actually implement Queue because I'm too lazy to implement all of the Collection methods
+ * Frames are retained when they're added instead of being copied, and ownership of that reference passes to whoever polls them.
+ * If the capacity is exceeded, the oldest frames are released and removed.
+ * The pipeline uses FrameQueue now, which does the same thing without locking. This is still around to benchmark against.
  */
-public class RingBuffer extends AbstractQueue<Mat> {
-    protected Mat[] elems;
+public class RingBuffer extends AbstractQueue<Frame> {
+    protected Frame[] elems;
     protected int start;
     protected int end;
 
     public RingBuffer(int capacity) {
-        elems = new Mat[capacity + 1];
+        elems = new Frame[capacity + 1];
         start = 0;
         end = 0;
     }
@@ -34,46 +37,65 @@ public class RingBuffer extends AbstractQueue<Mat> {
     }
 
     @Override
-    public synchronized boolean offer(Mat elem) {
-        if (elems[end] == null) elems[end] = new Mat();
-        elem.copyTo(elems[end]);
+    public synchronized boolean offer(Frame elem) {
+        elems[end] = elem.retain();
         if (++end == modulus()) {
             end = 0;
         }
-        if (start == end && ++start == modulus()) start = 0;
+        if (start == end) {
+            elems[start].release();
+            elems[start] = null;
+            if (++start == modulus()) start = 0;
+        }
         return true;
     }
     @Override
-    public synchronized Mat poll() {
+    public synchronized Frame poll() {
         if (start == end) return null;
-        Mat out = elems[start++];
+        Frame out = elems[start];
+        elems[start++] = null;
         if (start == modulus()) start = 0;
         return out;
     }
     @Override
-    public synchronized Mat peek() {
+    public synchronized Frame peek() {
         return start == end ? null : elems[start];
     }
 
     @Override
-    public void clear() {
-        start = 0;
-        end = 0;
+    public synchronized void clear() {
+        Frame f;
+        while ((f = poll()) != null) f.release();
     }
     @Override
     public Iter iterator() {
         return new Iter();
     }
     
-    public class Iter implements Iterator<Mat> {
+    // Walks the frames from oldest to newest without taking them.
+    public class Iter implements Iterator<Frame> {
+        int pos;
+
+        Iter() {
+            synchronized (RingBuffer.this) {
+                pos = start;
+            }
+        }
+
         @Override
         public boolean hasNext() {
-            return size() == 0;
+            synchronized (RingBuffer.this) {
+                return pos != end && elems[pos] != null;
+            }
         }
         @Override
-        public Mat next() {
-            return poll();
+        public Frame next() {
+            synchronized (RingBuffer.this) {
+                if (pos == end || elems[pos] == null) throw new NoSuchElementException();
+                Frame out = elems[pos];
+                if (++pos == modulus()) pos = 0;
+                return out;
+            }
         }
     }
 }
-
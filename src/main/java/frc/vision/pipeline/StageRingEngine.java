@@ -0,0 +1,266 @@
+package frc.vision.pipeline;
+
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs compiled plans on a fixed set of worker threads, without allocating anything per frame.
+// Each camera gets a lane with a ring of preallocated slots, one per frame in flight, sized by the camera's maxInFlight.
+// A slot steps through its plan's stages, and then its results are published in capture order through the camera's PublishOrder.
+// Workers claim tasks out of the current stage with a CAS, and whoever finishes the last task of a stage opens the next one.
+// Every open task gets one permit on a semaphore, so idle workers sleep instead of spinning.
+public class StageRingEngine {
+    // Claim words pack the epoch, the stage, and the next task to claim, so a claim can't land in the wrong stage.
+    // The epoch goes up on every stage change, so an old claim word can never match again.
+    protected static final int INDEX_BITS = 20;
+    protected static final int STAGE_BITS = 20;
+    protected static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+    protected static final long STAGE_MASK = (1L << STAGE_BITS) - 1;
+    // Stage of a slot that isn't running anything.
+    protected static final int IDLE = (int)STAGE_MASK;
+
+    protected static long pack(long epoch, int stage, int index) {
+        return (epoch << (STAGE_BITS + INDEX_BITS)) | ((long)stage << INDEX_BITS) | index;
+    }
+    protected static long epochOf(long claim) {
+        return claim >>> (STAGE_BITS + INDEX_BITS);
+    }
+    protected static int stageOf(long claim) {
+        return (int)((claim >>> INDEX_BITS) & STAGE_MASK);
+    }
+    protected static int indexOf(long claim) {
+        return (int)(claim & INDEX_MASK);
+    }
+
+    protected static class Slot {
+        // Position in the ring, which is also the slot in the camera's PublishOrder.
+        final int index;
+        final AtomicLong claim = new AtomicLong(pack(0, IDLE, 0));
+        // Tasks in the current stage that haven't finished yet.
+        final AtomicInteger remaining = new AtomicInteger();
+        // When the current stage was opened, for tracing.
+        volatile long stageStart;
+        volatile Frame frame;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    // A single camera's ring.
+    protected class Lane implements PublishOrder.Publisher {
+        final CameraBase cam;
+        final VisionLibsGroup.CamState state;
+        final ExecutionPlan plan;
+        final Slot[] ring;
+        // Frames that have been started and finished.
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong finished = new AtomicLong();
+
+        Lane(CameraBase cam, VisionLibsGroup.CamState state) {
+            this.cam = cam;
+            this.state = state;
+            this.plan = state.plan;
+            this.ring = new Slot[plan.depth];
+            for (int i = 0; i < ring.length; i++) ring[i] = new Slot(i);
+        }
+
+        // Number of tasks in a stage.
+        int tasksIn(int stage) {
+            return stage < plan.stages.length ? plan.stages[stage].length : 0;
+        }
+
+        // Start as many waiting frames as there are free slots.
+        void dispatch() {
+            while (state.pressure.peek() != null) {
+                int r = state.order.reserve();
+                if (r < 0) return;
+                Frame frame = state.pressure.poll();
+                if (frame == null) {
+                    // someone else took it, give the slot back and check again in case another frame just came in
+                    state.order.cancel(r);
+                    continue;
+                }
+                state.order.start(r, frame.getSequence());
+                Slot slot = ring[r];
+                slot.frame = frame;
+                started.incrementAndGet();
+                open(slot, 0);
+            }
+        }
+
+        // Move a slot to a stage, skipping over empty ones, or finish it if there aren't any stages left.
+        void open(Slot slot, int stage) {
+            int n = tasksIn(stage);
+            while (n == 0 && stage < plan.stages.length) n = tasksIn(++stage);
+            if (n == 0) {
+                complete(slot);
+                return;
+            }
+            long epoch = epochOf(slot.claim.get()) + 1;
+            slot.remaining.set(n);
+            slot.stageStart = System.nanoTime();
+            slot.claim.set(pack(epoch, stage, 0));
+            permits.release(n);
+        }
+
+        // Try to claim and run a task from this lane, returning whether there was one.
+        boolean runOne() {
+            for (Slot slot : ring) {
+                while (true) {
+                    long c = slot.claim.get();
+                    int stage = stageOf(c);
+                    int index = indexOf(c);
+                    if (index >= tasksIn(stage)) break;
+                    if (!slot.claim.compareAndSet(c, c + 1)) continue;
+                    run(slot, stage, index);
+                    if (slot.remaining.decrementAndGet() == 0) advance(slot, stage);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void run(Slot slot, int stage, int index) {
+            Frame frame = slot.frame;
+            try {
+                int idx = plan.stages[stage][index];
+                long start = System.nanoTime();
+                plan.procs[idx].process(plan.slot(idx, slot.index), frame.view(plan.regions[idx]), cam, plan.deps.get(idx));
+                state.procTimes[idx].since(start);
+            } catch (Exception e) {
+                PrintWriter log = cam.getLog();
+                e.printStackTrace(log);
+                log.flush();
+            }
+        }
+
+        void advance(Slot slot, int stage) {
+            state.stageTimes[stage].since(slot.stageStart);
+            open(slot, stage + 1);
+        }
+
+        // Hand a slot that's done with its plan over to be published, once everything older is out.
+        void complete(Slot slot) {
+            long c = slot.claim.get();
+            slot.claim.set(pack(epochOf(c) + 1, IDLE, 0));
+            try {
+                state.order.finish(slot.index, this);
+            } catch (Exception e) {
+                PrintWriter log = cam.getLog();
+                e.printStackTrace(log);
+                log.flush();
+            }
+            dispatch();
+        }
+
+        @Override
+        public void publish(int r, boolean stale) {
+            Slot slot = ring[r];
+            Frame frame = slot.frame;
+            slot.frame = null;
+            state.pressure.finished(stale);
+            try {
+                if (!stale) group.publish(frame, cam, state, r);
+            } finally {
+                frame.release();
+                finished.incrementAndGet();
+            }
+        }
+
+        boolean isBusy() {
+            return state.order.running() > 0;
+        }
+    }
+
+    protected final VisionLibsGroup group;
+    protected final ConcurrentHashMap<CameraBase, Lane> lanes;
+    // Lanes in a list too, so workers can walk them without an iterator.
+    protected final CopyOnWriteArrayList<Lane> laneList;
+    protected final Semaphore permits;
+    protected final Thread[] workers;
+    protected volatile boolean running;
+
+    // Create an engine with a number of worker threads. How many frames each camera can have in flight comes from its plan.
+    // If cpus isn't null, the workers are pinned to those cores, and anything that goes wrong doing that is written to log.
+    public StageRingEngine(VisionLibsGroup group, int threads, List<Integer> cpus, PrintWriter log) {
+        this.group = group;
+        this.lanes = new ConcurrentHashMap<>();
+        this.laneList = new CopyOnWriteArrayList<>();
+        this.permits = new Semaphore(0);
+        this.running = true;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                if (cpus != null) ThreadPools.pin(cpus, log);
+                work();
+            }, "stage-ring-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // Start whatever frames a camera has waiting, if there's room for them.
+    public void accept(CameraBase cam, VisionLibsGroup.CamState state) {
+        Lane lane = lanes.get(cam);
+        if (lane == null) {
+            synchronized (lanes) {
+                lane = lanes.get(cam);
+                if (lane == null) {
+                    lane = new Lane(cam, state);
+                    lanes.put(cam, lane);
+                    laneList.add(lane);
+                }
+            }
+        }
+        lane.dispatch();
+    }
+
+    protected void work() {
+        int start = 0;
+        while (running) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // a permit means there's an unclaimed task somewhere, but another worker might be between claiming and running it
+            boolean found = false;
+            while (!found && running) {
+                int n = laneList.size();
+                if (n == 0) break;
+                for (int i = 0; i < n && !found; i++) found = laneList.get((start + i) % n).runOne();
+                if (!found) Thread.onSpinWait();
+            }
+            // start from a different lane next time, so one busy camera can't starve the rest
+            start++;
+        }
+    }
+
+    // Number of frames that have been started and finished for a camera.
+    public long getStarted(CameraBase cam) {
+        Lane lane = lanes.get(cam);
+        return lane == null ? 0 : lane.started.get();
+    }
+    public long getFinished(CameraBase cam) {
+        Lane lane = lanes.get(cam);
+        return lane == null ? 0 : lane.finished.get();
+    }
+
+    public boolean isRunning() {
+        for (Lane lane : laneList) if (lane.isBusy()) return true;
+        return false;
+    }
+
+    public void cancel() {
+        running = false;
+        for (Thread worker : workers) worker.interrupt();
+        for (Lane lane : laneList) lane.state.pressure.clear();
+    }
+}
@@ -0,0 +1,147 @@
+package frc.vision.pipeline;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Named thread pools that cameras and processors can be assigned to, so a slow processor can't starve the others.
+// Pools are set up from threads.json, and are made the first time something asks for them.
+// Threads in a pool can be pinned to a set of cores, so capture, tag detection, and color processing don't fight over them.
+public class ThreadPools {
+    // Settings for a single pool.
+    public static class PoolConfig {
+        // Number of threads in the pool.
+        public int threads = 1;
+        // Cores to pin the pool's threads to, or null to let the OS decide.
+        public ArrayList<Integer> cpus;
+        // Number of tasks that can wait for a thread. Past this, whoever submits a task runs it themselves.
+        public int queue = 64;
+    }
+
+    // The whole threads.json file.
+    public static class Config {
+        // Number of threads OpenCV uses inside its own functions, or negative to leave OpenCV's default.
+        public int opencvThreads = -1;
+        // Pools by name. A pool called "default" is used for anything that isn't given one, and "ring" sets up the stage ring's workers.
+        public HashMap<String, PoolConfig> pools = new HashMap<>();
+    }
+
+    protected static Config config = new Config();
+    protected static ConcurrentHashMap<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+    // Pool names that were asked for but don't exist, so each is only warned about once.
+    protected static Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    private ThreadPools() {}
+
+    // Initialize the pools from a file, in JSON.
+    public static void initConfig(Reader file) throws JsonSyntaxException, JsonIOException {
+        Config cfg = new Gson().fromJson(file, Config.class);
+        if (cfg != null) config = cfg;
+        if (config.pools == null) config.pools = new HashMap<>();
+    }
+
+    public static Config getConfig() {
+        return config;
+    }
+
+    public static PoolConfig getPoolConfig(String name) {
+        return name == null ? null : config.pools.get(name);
+    }
+
+    // Get the executor for a pool, or the fallback if there's no pool with that name.
+    // A null name gets the default pool.
+    // A missing pool is written to the log the first time it's asked for, and so is anything that goes wrong setting up a new one.
+    public static Executor get(String name, Executor fallback, PrintWriter log) {
+        if (name == null) name = "default";
+        PoolConfig cfg = config.pools.get(name);
+        if (cfg == null) {
+            if (name.equals("default")) return fallback;
+            if (missing.add(name) && log != null) {
+                log.write(String.format("No thread pool named \"%s\", using the default\n", name));
+                log.flush();
+            }
+            return get(null, fallback, log);
+        }
+        String name_ = name;
+        return pools.computeIfAbsent(name, _name -> create(name_, cfg, log));
+    }
+    public static Executor get(String name, Executor fallback) {
+        return get(name, fallback, null);
+    }
+
+    // Get the default pool, or the common pool if there isn't one.
+    public static Executor getDefault() {
+        return get(null, ForkJoinPool.commonPool());
+    }
+
+    protected static ThreadPoolExecutor create(String name, PoolConfig cfg, PrintWriter log) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor out = new ThreadPoolExecutor(
+            cfg.threads,
+            cfg.threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(Math.max(1, cfg.queue)),
+            task -> {
+                Thread thread = new Thread(() -> {
+                    if (cfg.cpus != null) pin(cfg.cpus, log);
+                    task.run();
+                }, String.format("%s-%d", name, count.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            },
+            // dropping a task would leave a frame's futures hanging, so run it in place instead
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        out.prestartAllCoreThreads();
+        return out;
+    }
+
+    // Pin the current thread to a set of cores, returning whether it worked.
+    // Java can't do this itself, so this finds the thread's Linux ID and hands it to taskset.
+    public static boolean pin(List<Integer> cpus, PrintWriter log) {
+        if (cpus == null || cpus.isEmpty()) return true;
+        String list = cpus.stream().map(String::valueOf).collect(Collectors.joining(","));
+        try {
+            // resolves to /proc/<pid>/task/<tid>
+            Path self = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            String tid = self.getFileName().toString();
+            Process proc = new ProcessBuilder("taskset", "-p", "-c", list, tid)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if (proc.waitFor() == 0) return true;
+            if (log != null) {
+                log.write(String.format("taskset failed to pin %s to cores %s\n", Thread.currentThread().getName(), list));
+                log.flush();
+            }
+        } catch (Exception e) {
+            if (log != null) {
+                e.printStackTrace(log);
+                log.flush();
+            }
+        }
+        return false;
+    }
+
+    public static void shutdown() {
+        for (ThreadPoolExecutor pool : pools.values()) pool.shutdown();
+    }
+}
@@ -3,112 +3,90 @@ package frc.vision.pipeline;
 import edu.wpi.first.networktables.NetworkTable;
 import frc.vision.camera.*;
 import frc.vision.process.*;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.*;
 import java.util.function.BiConsumer;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.opencv.core.Mat;
 
 // Vision library group to handle dispatch from a frame to running vision processors.
 // Should be mostly non-blocking.
-public class VisionLibsGroup implements BiConsumer<Mat, CameraBase> {
+public class VisionLibsGroup implements BiConsumer<Frame, CameraBase> {
     public static final int MAX_QUEUE = 1;
-    public static final int MAX_PROCS = 1; // I want real framerate
-    protected class CamState {
-        ConcurrentHashMap<CompletableFuture<Void>, Integer> handles;
-        RingBuffer frames;
-        AtomicInteger running;
-        ArrayList<ArrayList<Integer>> plan;
-        boolean loggedLibs;
-
-        public CamState() {
-            handles = new ConcurrentHashMap<>();
-            frames = new RingBuffer(MAX_QUEUE);
-            running = new AtomicInteger();
-            loggedLibs = false;
-        }
-
-        public void buildPlan(Collection<String> vlibs) {
-            if (plan == null) rebuildPlan(vlibs);
-        }
-
-        public void rebuildPlan(Collection<String> vlibs) {
-            class Proc {
-                int index;
-                Collection<String> deps;
-                Collection<Integer> resDeps;
+    protected class CamState implements PublishOrder.Publisher {
+        // Bumped by cancel(). Frames from before that skip the stages they haven't started, and aren't published.
+        volatile int generation;
+        // Frames waiting to be processed.
+        Backpressure pressure;
+        // Compiled the first time a frame comes in, once the camera's config is final.
+        CameraBase cam;
+        ExecutionPlan plan;
+        PublishOrder order;
+        // Frames being processed, and the generation they were started in, by in-flight slot.
+        Frame[] inFlight;
+        int[] generations;
+        // Copy of the frame that debug drawings go on, so processors never see them.
+        Mat debugFrame;
+        // Latency histograms from the camera's tracer, for each stage and processor in the plan, and for publishing.
+        LatencyTracer.Histogram[] stageTimes;
+        LatencyTracer.Histogram[] procTimes;
+        LatencyTracer.Histogram ntTime;
+        LatencyTracer.Histogram drawTime;
+        LatencyTracer.Histogram postTime;
+        LatencyTracer.Histogram totalTime;
 
-                Proc(int index) {
-                    this.index = index;
-                }
-                Proc(int index, Collection<String> deps) {
-                    this.index = index;
-                    this.deps = deps;
-                }
+        public CamState(CameraBase cam) {
+            debugFrame = new Mat();
+            pressure = new Backpressure(cam);
+            if (pressure.getPolicy() != Backpressure.Policy.LATEST) {
+                cam.getLog().write(String.format("Backpressure policy: %s\n", pressure.getPolicy()));
+                cam.getLog().flush();
             }
-            plan = new ArrayList(1);
-            HashMap<String, Proc> map = new HashMap<>();
-            HashSet<Integer> seen = new HashSet<>();
-            int idx = 0;
-            boolean again = false;
+        }
 
-            for (VisionProcessor proc : procs) {
-                ProcessorConfig cfg = proc.getConfig();
-                if (vlibs != null && !vlibs.contains(proc.getName())) {
-                    seen.add(idx);
-                    map.put(proc.getName(), new Proc(idx));
-                } else if (cfg == null || cfg.deps == null || cfg.deps.size() == 0) {
-                    if (plan.isEmpty()) plan.add(new ArrayList<>());
-                    plan.get(0).add(idx);
-                    seen.add(idx);
-                    map.put(proc.getName(), new Proc(idx));
-                } else {
-                    map.put(proc.getName(), new Proc(idx, cfg.deps.values()));
-                    again = true;
+        public void buildPlan(CameraBase cam) {
+            if (plan == null) {
+                synchronized (this) {
+                    if (plan == null) rebuildPlan(cam);
                 }
-                idx++;
-            }
-            for (var entry : map.entrySet()) {
-                if (entry.getValue().deps == null) continue;
-                entry.getValue().resDeps = entry.getValue().deps.stream()
-                    .map(d -> {
-                        Proc p = map.get(d);
-                        if (p == null) {
-                            System.err.println("Referred to missing processor \"" + d + "\"");
-                            return null;
-                        } else return p.index;
-                    })
-                    .filter(i -> i != null && !seen.contains(i))
-                    .collect(Collectors.toList());
-            }
-
-            if (plan.isEmpty() && again) {
-                System.err.println("Cycle in processor dependencies");
             }
+        }
 
-            for (int i = 1; again; i++) {
-                again = false;
-                for (Proc proc : map.values()) {
-                    if (proc.resDeps != null && proc.resDeps.isEmpty()) {
-                        again = true;
-                        if (plan.size() == i) plan.add(new ArrayList<>());
-                        plan.get(i).add(proc.index);
-                        proc.resDeps = null;
-                        for (Proc p2 : map.values()) if (p2.resDeps != null) p2.resDeps.remove(proc.index);
-                    }
-                }
-            }
+        // This must not be called while frames are in flight.
+        public synchronized void rebuildPlan(CameraBase cam) {
+            ExecutionPlan plan = ExecutionPlan.compile(procs, cam, exec);
+            this.cam = cam;
+            order = new PublishOrder(plan.depth);
+            inFlight = new Frame[plan.depth];
+            generations = new int[plan.depth];
+            LatencyTracer tracer = cam.getTracer();
+            stageTimes = new LatencyTracer.Histogram[plan.stages.length];
+            for (int i = 0; i < stageTimes.length; i++) stageTimes[i] = tracer.get("stage" + i);
+            procTimes = new LatencyTracer.Histogram[plan.procs.length];
+            for (int i = 0; i < procTimes.length; i++) procTimes[i] = tracer.get("proc/" + plan.procs[i].getName());
+            ntTime = tracer.get(LatencyTracer.NT);
+            drawTime = tracer.get(LatencyTracer.DRAW);
+            postTime = tracer.get(LatencyTracer.POST);
+            totalTime = tracer.get(LatencyTracer.TOTAL);
+            this.plan = plan;
+            cam.getLog().write(String.format("Using processors: %s\n", plan.names()));
+            if (plan.depth > 1) cam.getLog().write(String.format("Processing up to %d frames at once\n", plan.depth));
+            cam.getLog().flush();
+        }
 
-            for (Proc proc : map.values()) if (proc.resDeps != null) {
-                System.err.println("Cycle in processor dependencies");
+        // Publish the results for a frame on the futures path.
+        @Override
+        public void publish(int slot, boolean stale) {
+            Frame frame = inFlight[slot];
+            inFlight[slot] = null;
+            boolean cancelled = generations[slot] != generation;
+            pressure.finished(stale || cancelled);
+            try {
+                if (!stale && !cancelled) VisionLibsGroup.this.publish(frame, cam, this, slot);
+            } finally {
+                frame.release();
             }
         }
     }
@@ -116,8 +94,11 @@ public class VisionLibsGroup implements BiConsumer<Mat, CameraBase> {
     List<VisionProcessor> procs;
     NetworkTable table;
     BiConsumer<Mat, ? super CameraBase> postProcess;
+    BiConsumer<Frame, ? super CameraBase> onResults;
     ConcurrentHashMap<CameraBase, CamState> states;
     boolean visionDebug;
+    // Made the first time a camera asks for it.
+    volatile StageRingEngine ring;
 
     public VisionLibsGroup(List<VisionProcessor> procs, NetworkTable table, boolean visionDebug, Executor exec) {
         this.procs = procs;
@@ -132,20 +113,75 @@ public class VisionLibsGroup implements BiConsumer<Mat, CameraBase> {
         postProcess = callback;
     }
 
+    // Set a callback to be run with each frame once its results are in the table, before it's drawn on.
+    // The table holds that frame's results for as long as the callback runs.
+    public void setResultCallback(BiConsumer<Frame, ? super CameraBase> callback) {
+        onResults = callback;
+    }
+
     private CamState getState(CameraBase cam) {
-        CamState state = states.putIfAbsent(cam, new CamState());
-        if (state == null) state = states.get(cam);
-        return state;
+        return states.computeIfAbsent(cam, CamState::new);
     }
 
     @Override
-    public void accept(Mat frame, CameraBase cam) {
+    public void accept(Frame frame, CameraBase cam) {
         if (frame == null) return;
-        if (frame.dataAddr() == 0) return;
+        if (frame.isEmpty()) return;
         CamState state = getState(cam);
-        state.frames.add(frame);
+        try {
+            if (!state.pressure.offer(frame)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if ("ring".equals(cam.getConfig().engine)) {
+            state.buildPlan(cam);
+            getRing(cam.getLog()).accept(cam, state);
+            return;
+        }
         scheduleSelf(cam, state);
     }
+
+    // Get the ring engine, starting it if it hasn't been. Errors starting it go to the log of the camera that asked first.
+    protected StageRingEngine getRing(PrintWriter log) {
+        if (ring == null) {
+            synchronized (this) {
+                if (ring == null) {
+                    // the ring has its own workers, set up by the "ring" pool if there is one
+                    ThreadPools.PoolConfig cfg = ThreadPools.getPoolConfig("ring");
+                    int threads = cfg == null ? Runtime.getRuntime().availableProcessors() : cfg.threads;
+                    ring = new StageRingEngine(this, threads, cfg == null ? null : cfg.cpus, log);
+                }
+            }
+        }
+        return ring;
+    }
+
+    // Send a frame's results out and show them, once every processor is done with it.
+    // Frames are published one at a time, in capture order, by the camera's PublishOrder.
+    protected void publish(Frame frame, CameraBase cam, CamState state, int slot) {
+        ExecutionPlan plan = state.plan;
+        NetworkTable subTable = table == null ? null : table.getSubTable(cam.getName());
+        long start = System.nanoTime();
+        if (subTable != null) {
+            for (int i = 0; i < plan.procs.length; i++) plan.procs[i].toNetworkTable(plan.slot(i, slot), subTable, cam);
+            state.ntTime.since(start);
+        }
+        if (onResults != null) onResults.accept(frame, cam);
+        state.pressure.report(subTable == null ? null : subTable.getSubTable("frames"));
+        if (visionDebug) {
+            start = System.nanoTime();
+            drawDebug(frame.getMat(), cam, state, slot);
+            state.drawTime.since(start);
+        }
+        if (postProcess != null) {
+            start = System.nanoTime();
+            postProcess.accept(visionDebug ? state.debugFrame : frame.getMat(), cam);
+            state.postTime.since(start);
+        }
+        state.totalTime.since(frame.getTimestamp());
+        cam.getTracer().report(subTable == null ? null : subTable.getSubTable("telemetry"), cam.getLog());
+    }
     public Stream<VisionProcessor> getLibs(Collection<String> vlibs) {
         return procs.stream().filter(proc -> vlibs == null || vlibs.contains(proc.getName()));
     }
@@ -153,120 +189,82 @@ public class VisionLibsGroup implements BiConsumer<Mat, CameraBase> {
         procs.add(proc);
     }
     protected void scheduleSelf(CameraBase cam, CamState state) {
-        if (!state.loggedLibs) {
-            String names = getLibs(cam.getConfig().vlibs)
-                .map(p -> p.getName())
-                .reduce((a, b) -> a + ", " + b)
-                .orElse("<none>");
-            cam.getLog().write(String.format("Using processors: %s\n", names));
-            cam.getLog().flush();
-            state.loggedLibs = true;
-        }
-        if (state.running.getAndIncrement() >= MAX_PROCS) {
-            state.running.decrementAndGet();
-            return;
+        state.buildPlan(cam);
+        ExecutionPlan plan = state.plan;
+        int slot;
+        Frame frame;
+        while (true) {
+            slot = state.order.reserve();
+            if (slot < 0) return;
+            frame = state.pressure.poll();
+            if (frame != null) break;
+            state.order.cancel(slot);
+            // a frame could have come in while we had the slot, and been turned away because of it
+            if (state.pressure.peek() == null) return;
         }
-        Mat frame = state.frames.poll();
-        if (frame == null) {
-            state.running.decrementAndGet();
-            return;
-        }
-        state.buildPlan(cam.getConfig().vlibs);
+        state.order.start(slot, frame.getSequence());
+        state.inFlight[slot] = frame;
+        int gen = state.generation;
+        state.generations[slot] = gen;
+        int slot_ = slot;
+        Frame frame_ = frame;
         CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
-        for (int i = 0; i < state.plan.size(); i++) {
-            int j = i; // make java happy about final variables
+        for (int s = 0; s < plan.stages.length; s++) {
+            int[] stage = plan.stages[s];
+            LatencyTracer.Histogram stageTime = state.stageTimes[s];
             future = future.thenCompose(_void -> {
-                return CompletableFuture.allOf(
-                    state.plan.get(j).stream()
-                        .map(idx -> CompletableFuture.runAsync(() -> {
-                            Map<String, VisionProcessor> deps = null;
-                            VisionProcessor proc = procs.get(idx);
-                            var cfg = proc.getConfig();
-                            if (cfg != null) {
-                                if (cfg.deps != null) {
-                                    class Pair {
-                                        String key;
-                                        Optional<VisionProcessor> value;
-
-                                        Pair(String key, Optional<VisionProcessor> value) {
-                                            this.key = key;
-                                            this.value = value;
-                                        }
-                                    }
-                                    deps = cfg.deps.entrySet().stream()
-                                        .map(e -> new Pair(
-                                            e.getKey(),
-                                            getLibs(cam.getConfig().vlibs)
-                                                .filter(p -> p.getName().equals(e.getValue()))
-                                                .findAny()
-                                        ))
-                                        .filter(p -> p.value.isPresent())
-                                        .collect(Collectors.toMap(p -> p.key, p -> p.value.get()));
-                                }
-                            }
-                            proc.process(frame, cam, deps);
-                        }, exec))
-                        .toArray(size -> new CompletableFuture[size])
-                );
-            });
-        }
-        if (table != null || visionDebug) {
-            future = future.thenCompose(_void -> {
-                Stream<CompletableFuture<Void>> tables = Stream.empty();
-                if (table != null) {
-                    NetworkTable subTable = table.getSubTable(cam.getName());
-                    tables = getLibs(cam.getConfig().vlibs)
-                        .map(proc -> CompletableFuture.runAsync(() -> proc.toNetworkTable(subTable, cam), exec));
+                if (state.generation != gen) return CompletableFuture.completedFuture(null);
+                long start = System.nanoTime();
+                CompletableFuture<?>[] running = new CompletableFuture<?>[stage.length];
+                for (int i = 0; i < stage.length; i++) {
+                    int idx = stage[i];
+                    running[i] = CompletableFuture.runAsync(() -> {
+                        long procStart = System.nanoTime();
+                        plan.procs[idx].process(plan.slot(idx, slot_), frame_.view(plan.regions[idx]), cam, plan.deps.get(idx));
+                        state.procTimes[idx].since(procStart);
+                    }, plan.execs[idx]);
                 }
-                Stream<CompletableFuture<Void>> drawings = !visionDebug
-                    ? Stream.empty()
-                    : getLibs(cam.getConfig().vlibs)
-                        .map(proc -> CompletableFuture.runAsync(() -> proc.drawOnImage(frame, cam), exec));
-                return CompletableFuture.allOf(Stream.concat(tables, drawings).toArray(size -> new CompletableFuture[size]));
+                return CompletableFuture.allOf(running).thenRun(() -> stageTime.since(start));
             });
         }
-        RecursiveFutureRemover cleanup = new RecursiveFutureRemover();
-        cleanup.cam = cam;
-        cleanup.state = state;
-        CompletableFuture fut = future
-            .thenRunAsync(() -> {
-                if (postProcess != null) postProcess.accept(frame, cam);
-            }, exec)
-            .exceptionally(e -> {
-                e.printStackTrace(cam.getLog());
-                return null;
-            });
-        cleanup.handle = fut;
-        state.handles.put(fut, 0);
-        fut.whenCompleteAsync(cleanup, exec);
+        // this always runs, even after cancel(), so the frame is released once nothing is using it any more
+        future.handleAsync((_void, e) -> {
+            if (e != null) e.printStackTrace(cam.getLog());
+            try {
+                state.order.finish(slot_, state);
+            } catch (Exception e2) {
+                e2.printStackTrace(cam.getLog());
+            }
+            cam.getLog().flush();
+            scheduleSelf(cam, state);
+            return null;
+        }, plan.exec);
+    }
+
+    // Draw the camera overlays and processor results onto a copy of the frame.
+    protected void drawDebug(Mat img, CameraBase cam, CamState state, int slot) {
+        img.copyTo(state.debugFrame);
+        cam.annotate(state.debugFrame);
+        ExecutionPlan plan = state.plan;
+        for (int i = 0; i < plan.procs.length; i++) plan.procs[i].drawOnImage(plan.slot(i, slot), state.debugFrame, cam);
     }
+
+    // Stop processing everything that's in flight or waiting.
+    // Frames finish whatever stage they're in, skip the rest, and go back to their pools without being published.
     public void cancel() {
         for (CamState state : states.values()) {
-            for (CompletableFuture<Void> handle : state.handles.keySet()) handle.cancel(false);
+            state.generation++;
+            state.pressure.clear();
         }
+        if (ring != null) ring.cancel();
     }
+    // Whether any frames are being processed or waiting to be.
     public boolean isRunning() {
         for (CamState state : states.values()) {
-            for (CompletableFuture<Void> handle : state.handles.keySet()) if (!handle.isDone()) return true;
+            // frames take a slot before they leave the queue, so checking in this order can't miss one in between
+            if (state.pressure.peek() != null) return true;
+            if (state.order != null && state.order.running() > 0) return true;
         }
         return false;
     }
-
-    private class RecursiveFutureRemover implements BiConsumer<Object, Object> {
-        CameraBase cam;
-        CamState state;
-        CompletableFuture<Void> handle;
-
-        @Override
-        public synchronized void accept(Object _void, Object _ex) {
-            if (handle != null) {
-                state.handles.remove(handle);
-            } else {
-                cam.getLog().write("NULL handle, nothing to cleanup");
-                cam.getLog().flush();
-            }
-            state.running.decrementAndGet();
-            scheduleSelf(cam, state);
-        }
-    }
 }
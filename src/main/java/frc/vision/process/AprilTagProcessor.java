@@ -5,12 +5,13 @@ import edu.wpi.first.math.geometry.*;
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
 import frc.vision.camera.CameraConfig;
+import frc.vision.camera.Frame;
+import frc.vision.camera.Intrinsics;
 import frc.vision.load.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
@@ -18,6 +19,9 @@ import org.opencv.imgproc.Imgproc;
 public class AprilTagProcessor extends ObjectVisionProcessor {
     protected AprilTagDetector detector;
     protected Scalar tagColor;
+    // Factor to shrink frames by before detection, 1, 2, 4, or 8.
+    // Compressed frames are decoded straight to this size, and detections are scaled back up to the full frame.
+    protected int reduce = 1;
 
     public class AprilTag extends VisionObject {
         public AprilTagDetection found;
@@ -78,7 +82,14 @@ public class AprilTagProcessor extends ObjectVisionProcessor {
         }
     }
 
-    public static ConcurrentHashMap<String, Collection<AprilTag>> seen = new ConcurrentHashMap<>();
+    // What every camera's tags are published under on the ResultBus.
+    public static final String TOPIC = "apriltags";
+
+    // Get the tags that a camera saw nearest to a capture time, waiting up to waitMs for it to catch up if it's behind.
+    public static boolean tagsNear(String camera, long timestamp, double waitMs, ResultBus.Result<Collection<AprilTag>> out) {
+        ResultBus.Channel<Collection<AprilTag>> channel = ResultBus.channel(TOPIC, camera);
+        return channel.nearest(timestamp, (long)(waitMs * 1e6), out);
+    }
 
     public AprilTagProcessor(String name, ProcessorConfig cfg, Scalar rectColor, Scalar tagColor, AprilTagDetector detector) {
         super(name, cfg, rectColor);
@@ -145,31 +156,108 @@ public class AprilTagProcessor extends ObjectVisionProcessor {
     }
 
     @Override
-    protected Collection<VisionObject> processObjects(Mat img, CameraBase cam, Map<String, VisionProcessor> _deps) {
+    protected Collection<VisionObject> processObjects(Frame frame, CameraBase cam, Map<String, VisionProcessor> _deps) {
         AprilTagDetection[] tags = new AprilTagDetection[0];
-        Mat grayFrame = new Mat();
-        switch (img.channels()) {
-            case 1:
-                img.copyTo(grayFrame);
-                break;
-            case 3:
-                Imgproc.cvtColor(img, grayFrame, Imgproc.COLOR_BGR2GRAY);
-                break;
-            default:
-                throw new RuntimeException("Wrong number of image channels!");
-        }
+        Mat grayFrame = frame.getGray(reduce);
         synchronized(detector) {
             tags = detector.detect(grayFrame);
         }
+        // detections have to be in full frame coordinates before estimating poses, so they're mapped here instead of afterwards
+        Rect roi = frame.getRoi();
+        if (reduce > 1 || roi != null) {
+            // the shrunk image is the full one at a fixed scale, views of it start at a multiple of that scale
+            double scale = Frame.grayScale(reduce);
+            double dx = roi == null ? 0 : roi.x;
+            double dy = roi == null ? 0 : roi.y;
+            for (int i = 0; i < tags.length; i++) tags[i] = mapDetection(tags[i], scale, dx, dy);
+        }
+        // poses assume a pinhole camera, so take the lens distortion out of just the corners
+        Intrinsics intr = cam.getConfig().intrinsics(cam.getLog());
+        if (intr.hasDistortion()) {
+            for (int i = 0; i < tags.length; i++) tags[i] = undistortDetection(tags[i], intr);
+        }
         // unlike the detector, the estimator seems to just be a wrapper around the config
-        AprilTagPoseEstimator estimator = new AprilTagPoseEstimator(cam.getConfig().poseConfig());
+        AprilTagPoseEstimator estimator = new AprilTagPoseEstimator(cam.getConfig().poseConfig(cam.getLog()));
         Collection<AprilTag> tagCollection = Arrays.stream(tags)
             .map(obj -> new AprilTag(obj, estimator.estimate(obj)))
             .collect(Collectors.toList());
-        seen.put(cam.getName(), tagCollection);
+        ResultBus.<Collection<AprilTag>>channel(TOPIC, cam.getName()).publish(frame.getSequence(), frame.getTimestamp(), tagCollection);
         return tagCollection.stream().collect(Collectors.toList());
     }
 
+    // Map a detection from a shrunk or cropped image back to the full frame.
+    protected static AprilTagDetection mapDetection(AprilTagDetection tag, double scale, double dx, double dy) {
+        double[] corners = tag.getCorners().clone();
+        for (int i = 0; i < corners.length; i += 2) {
+            corners[i] = corners[i] * scale + dx;
+            corners[i + 1] = corners[i + 1] * scale + dy;
+        }
+        // the homography maps tag coordinates to image coordinates, so the image transform gets applied on the left
+        double[] h = tag.getHomography();
+        double[] homography = new double[] {
+            h[0] * scale + h[6] * dx, h[1] * scale + h[7] * dx, h[2] * scale + h[8] * dx,
+            h[3] * scale + h[6] * dy, h[4] * scale + h[7] * dy, h[5] * scale + h[8] * dy,
+            h[6], h[7], h[8],
+        };
+        return new AprilTagDetection(
+            tag.getFamily(),
+            tag.getId(),
+            tag.getHamming(),
+            tag.getDecisionMargin(),
+            homography,
+            tag.getCenterX() * scale + dx,
+            tag.getCenterY() * scale + dy,
+            corners
+        );
+    }
+
+    // Undistort a detection's corners and center, and fit a new homography to the corners.
+    protected static AprilTagDetection undistortDetection(AprilTagDetection tag, Intrinsics intr) {
+        double[] corners = tag.getCorners();
+        double[] pts = new double[corners.length + 2];
+        System.arraycopy(corners, 0, pts, 0, corners.length);
+        pts[corners.length] = tag.getCenterX();
+        pts[corners.length + 1] = tag.getCenterY();
+        intr.undistort(pts);
+        double[] undistorted = Arrays.copyOf(pts, corners.length);
+        MatOfPoint2f dst = new MatOfPoint2f(
+            new Point(pts[0], pts[1]),
+            new Point(pts[2], pts[3]),
+            new Point(pts[4], pts[5]),
+            new Point(pts[6], pts[7])
+        );
+        // the detector's homography maps these tag coordinates to the corners, in this order
+        MatOfPoint2f src = new MatOfPoint2f(new Point(-1, 1), new Point(1, 1), new Point(1, -1), new Point(-1, -1));
+        Mat h = Imgproc.getPerspectiveTransform(src, dst);
+        double[] homography = new double[9];
+        h.get(0, 0, homography);
+        src.release();
+        dst.release();
+        h.release();
+        return new AprilTagDetection(
+            tag.getFamily(),
+            tag.getId(),
+            tag.getHamming(),
+            tag.getDecisionMargin(),
+            homography,
+            pts[corners.length],
+            pts[corners.length + 1],
+            undistorted
+        );
+    }
+
+    // Tags were already mapped back before their poses were estimated.
+    @Override
+    protected void mapFromRoi(Collection<VisionObject> objs, Rect roi) {}
+
+    public int getReduce() {
+        return reduce;
+    }
+
+    public void setReduce(int reduce) {
+        this.reduce = reduce;
+    }
+
     @Override
     public void toNetworkTableStateful(NetworkTable table, Ref state) {
         super.toNetworkTableStateful(table, state);
@@ -247,6 +335,10 @@ public class AprilTagProcessor extends ObjectVisionProcessor {
 
     public static class Config extends ProcessorConfig {
         public ArrayList<String> family;
+        // Factor to shrink frames by before detection, 1, 2, 4, or 8.
+        public int reduce = 1;
+        // Number of threads the detector uses, or 0 to keep its default.
+        public int threads = 0;
     }
     public static class Factory extends ProcessorFactory {
         @Override
@@ -261,6 +353,12 @@ public class AprilTagProcessor extends ObjectVisionProcessor {
         public AprilTagProcessor create(String name, ProcessorConfig cfg) {
             AprilTagProcessor out = new AprilTagProcessor(name, cfg);
             Config cfg_ = (Config)cfg;
+            out.setReduce(cfg_.reduce);
+            if (cfg_.threads > 0) {
+                AprilTagDetector.Config dcfg = new AprilTagDetector.Config();
+                dcfg.numThreads = cfg_.threads;
+                out.getDetector().setConfig(dcfg);
+            }
             if (cfg_.family != null) {
                 for (String family : cfg_.family) {
                     out.getDetector().addFamily(family);
@@ -0,0 +1,160 @@
+package frc.vision.process;
+
+import edu.wpi.first.networktables.*;
+import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
+import frc.vision.camera.FrameView;
+import frc.vision.camera.Intrinsics;
+import frc.vision.load.ProcessorFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+// Calibrates a camera from views of a chessboard, and writes its intrinsics to <output>/<camera>.json.
+// Point the camera's "calibration" at that file to use them.
+// Move the board around the whole frame, at different angles and distances, while this is running.
+public class CalibrationProcessor extends InstancedVisionProcessor<CalibrationProcessor.State> {
+    protected static class State {
+        List<Mat> imagePoints = new ArrayList<>();
+        // Corners from the last frame the board was found in, for drawing.
+        MatOfPoint2f last;
+        long lastTime;
+        Size size;
+        Intrinsics result;
+    }
+
+    public static class Config extends ProcessorConfig {
+        // Number of inner corners along each side of the board.
+        public int cols = 9;
+        public int rows = 6;
+        // Side length of a square. Intrinsics don't depend on it, but it's kept consistent anyway.
+        public double squareSize = 1;
+        // Number of views of the board to calibrate from.
+        public int views = 25;
+        // Minimum time between views, in milliseconds, so they aren't all the same.
+        public int interval = 500;
+        // Directory to write calibration files to.
+        public String output = "calibration";
+    }
+    public static class Factory extends ProcessorFactory {
+        @Override
+        public String typeName() {
+            return "calibrate";
+        }
+        @Override
+        public Class<Config> configType() {
+            return Config.class;
+        }
+        @Override
+        public CalibrationProcessor create(String name, ProcessorConfig cfg) {
+            return new CalibrationProcessor(name, (Config)cfg);
+        }
+    }
+
+    public CalibrationProcessor(String name, Config cfg) {
+        super(name, cfg);
+    }
+
+    @Override
+    public Config getConfig() {
+        return (Config)super.getConfig();
+    }
+
+    // Views are collected across frames, so every frame in flight adds to the same set, and calibration runs once.
+    @Override
+    protected boolean sharesState() {
+        return true;
+    }
+
+    @Override
+    protected synchronized void processStateful(Frame frame, CameraBase cam, Map<String, VisionProcessor> deps, Ref state) {
+        Config cfg = getConfig();
+        if (state.inner == null) state.inner = new State();
+        State s = state.inner;
+        if (s.result != null) return;
+        if (frame.getTimestamp() - s.lastTime < cfg.interval * 1000000L) return;
+
+        // calibration needs the whole sensor, not whatever part the other processors look at
+        if (frame instanceof FrameView) frame = ((FrameView)frame).getParent();
+        Mat gray = frame.getGray();
+        Size pattern = new Size(cfg.cols, cfg.rows);
+        MatOfPoint2f corners = new MatOfPoint2f();
+        boolean found = Calib3d.findChessboardCorners(
+            gray,
+            pattern,
+            corners,
+            Calib3d.CALIB_CB_ADAPTIVE_THRESH | Calib3d.CALIB_CB_NORMALIZE_IMAGE | Calib3d.CALIB_CB_FAST_CHECK
+        );
+        if (!found) {
+            corners.release();
+            return;
+        }
+        Imgproc.cornerSubPix(gray, corners, new Size(11, 11), new Size(-1, -1), new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.001));
+        s.imagePoints.add(corners);
+        s.last = corners;
+        s.lastTime = frame.getTimestamp();
+        s.size = gray.size();
+
+        PrintWriter log = cam.getLog();
+        log.write(String.format("Calibration view %d/%d\n", s.imagePoints.size(), cfg.views));
+        log.flush();
+        if (s.imagePoints.size() < cfg.views) return;
+
+        Point3[] board = new Point3[cfg.cols * cfg.rows];
+        for (int y = 0; y < cfg.rows; y++) {
+            for (int x = 0; x < cfg.cols; x++) board[y * cfg.cols + x] = new Point3(x * cfg.squareSize, y * cfg.squareSize, 0);
+        }
+        List<Mat> objectPoints = new ArrayList<>();
+        for (int i = 0; i < s.imagePoints.size(); i++) objectPoints.add(new MatOfPoint3f(board));
+        Mat camMat = new Mat();
+        Mat dist = new Mat();
+        double rms = Calib3d.calibrateCamera(objectPoints, s.imagePoints, s.size, camMat, dist, new ArrayList<Mat>(), new ArrayList<Mat>());
+
+        Intrinsics out = new Intrinsics();
+        out.width = (int)s.size.width;
+        out.height = (int)s.size.height;
+        out.fx = camMat.get(0, 0)[0];
+        out.fy = camMat.get(1, 1)[0];
+        out.cx = camMat.get(0, 2)[0];
+        out.cy = camMat.get(1, 2)[0];
+        out.dist = new double[(int)dist.total()];
+        dist.reshape(1, 1).get(0, 0, out.dist);
+        out.rms = rms;
+        s.result = out;
+
+        File file = new File(cfg.output, cam.getName() + ".json");
+        try {
+            out.save(file);
+            log.write(String.format("Calibrated with an RMS error of %.3fpx, wrote %s\n", rms, file));
+        } catch (IOException e) {
+            e.printStackTrace(log);
+            if (CameraBase.echoErrors) e.printStackTrace();
+        }
+        log.flush();
+    }
+
+    @Override
+    protected void toNetworkTableStateful(NetworkTable table, Ref state) {
+        if (state.inner == null) return;
+        NetworkTable table_ = table.getSubTable(name);
+        table_.putValue("views", NetworkTableValue.makeInteger(state.inner.imagePoints.size()));
+        table_.putValue("rms", NetworkTableValue.makeDouble(state.inner.result == null ? -1 : state.inner.result.rms));
+    }
+
+    @Override
+    protected synchronized void drawOnImageStateful(Mat img, Ref state) {
+        if (state.inner == null) return;
+        Config cfg = getConfig();
+        if (state.inner.last != null) Calib3d.drawChessboardCorners(img, new Size(cfg.cols, cfg.rows), state.inner.last, true);
+        String text = state.inner.result == null
+            ? String.format("%d/%d views", state.inner.imagePoints.size(), cfg.views)
+            : String.format("done, rms %.3f", state.inner.result.rms);
+        Imgproc.putText(img, text, new Point(10, 40), Imgproc.FONT_HERSHEY_SIMPLEX, 0.6, new Scalar(0, 255, 255));
+    }
+}
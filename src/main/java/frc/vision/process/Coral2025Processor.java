@@ -2,9 +2,11 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import frc.vision.load.ProcessorFactory;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -35,10 +37,27 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
             return ar < amax && ar > 1 / amax;
         }
     }
+    // Each in-flight slot keeps its state, and is only processed again once it's been published,
+    // so the scratch here is never used by two frames at once and nothing has to be synchronized.
     protected static class State {
         Rect overallCrop;
         List<TaggedRect> zones;
         List<TaggedRect> detections;
+        // Frame the tags came from, and how much older it was than ours, in milliseconds.
+        long tagSequence = -1;
+        double tagAge = Double.NaN;
+        // Tags found for this frame, and scratch images for the crop.
+        final ResultBus.Result<Collection<AprilTagProcessor.AprilTag>> nearTags = new ResultBus.Result<>();
+        final Mat blurred = new Mat();
+        final Mat hsv = new Mat();
+
+        void clear() {
+            overallCrop = null;
+            zones = null;
+            detections = null;
+            tagSequence = -1;
+            tagAge = Double.NaN;
+        }
     }
 
     public static class Position {
@@ -71,6 +90,10 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
 
         // camera to get april tags from
         public String tagCam;
+        // longest to wait for the tag camera to catch up to our frame, in milliseconds
+        public double tagWait = 0;
+        // tags captured further than this from our frame are ignored, in milliseconds
+        public double maxTagAge = Double.POSITIVE_INFINITY;
         // allowed april tags for us to search for
         public ArrayList<Integer> recognizedTags = new ArrayList<>();
         // available positions to search for
@@ -101,13 +124,19 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
     }
 
     @Override
-    protected synchronized void processStateful(Mat img, CameraBase cam, Map<String, VisionProcessor> deps, Ref state) {
+    protected void processStateful(Frame frame, CameraBase cam, Map<String, VisionProcessor> deps, Ref state) {
         Config cfg = getConfig();
 
-        state.inner = new State();
+        if (state.inner == null) state.inner = new State();
+        state.inner.clear();
+        var nearTags = state.inner.nearTags;
 
-        var seen = AprilTagProcessor.seen.get(cfg.tagCam == null ? cam.getName() : cfg.tagCam);
-        if (seen == null) return;
+        String tagCam = cfg.tagCam == null ? cam.getName() : cfg.tagCam;
+        if (!AprilTagProcessor.tagsNear(tagCam, frame.getTimestamp(), cfg.tagWait, nearTags)) return;
+        state.inner.tagSequence = nearTags.sequence;
+        state.inner.tagAge = nearTags.ageMillis();
+        if (Math.abs(nearTags.ageMillis()) > cfg.maxTagAge) return;
+        var seen = nearTags.value;
 
         var tags = seen.stream()
             .filter(a -> cfg.recognizedTags.contains(a.getId()))
@@ -126,21 +155,31 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
 
         if (crop == null) return;
 
-        if (crop.x < 0) {
-            crop.width += crop.x;
-            crop.x = 0;
+        Mat img = frame.getMat();
+        // tags are in full frame coordinates, but our image may only be part of the frame
+        Rect region = frame.getRoi();
+        int rx = region == null ? 0 : region.x;
+        int ry = region == null ? 0 : region.y;
+        if (crop.x < rx) {
+            crop.width -= rx - crop.x;
+            crop.x = rx;
         }
-        if (crop.y < 0) {
-            crop.height += crop.y;
-            crop.y = 0;
+        if (crop.y < ry) {
+            crop.height -= ry - crop.y;
+            crop.y = ry;
         }
-        int ox = crop.x + crop.width - img.cols();
+        int ox = crop.x + crop.width - (rx + img.cols());
         if (ox > 0) crop.width -= ox;
-        int oy = crop.y + crop.height - img.rows();
+        int oy = crop.y + crop.height - (ry + img.rows());
         if (oy > 0) crop.height -= oy;
-        if (crop.area() <= cfg.minArea) return;
+        if (crop.width <= 0 || crop.height <= 0 || crop.area() <= cfg.minArea) return;
 
-        Mat cropped = new Mat(img, crop);
+        // only the crop gets smoothed and converted, the rest of the frame is never looked at
+        Mat cropped = new Mat(img, new Rect(crop.x - rx, crop.y - ry, crop.width, crop.height));
+        Mat blurred = state.inner.blurred;
+        Mat hsv = state.inner.hsv;
+        Imgproc.blur(cropped, blurred, new Size(3, 3));
+        Imgproc.cvtColor(blurred, hsv, Imgproc.COLOR_BGR2HSV);
 
         TaggedRect[] rects = Arrays.stream(tags)
             .flatMap(a -> {
@@ -162,13 +201,10 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
         state.inner.zones = Arrays.asList(rects);
         state.inner.detections = new ArrayList<>();
 
-        Mat m1 = new Mat(); // blurred, reused for filtered
-        Imgproc.blur(cropped, m1, new Size(3, 3));
-
-        Mat m2 = new Mat(); // HSV, reused for blurred filter
-        Imgproc.cvtColor(m1, m2, Imgproc.COLOR_BGR2HSV);
+        Mat m1 = new Mat(); // filtered
+        Mat m2 = new Mat(); // blurred filter
         Core.inRange(
-            m2,
+            hsv,
             new Scalar(cfg.hmin, cfg.smin, cfg.vmin),
             new Scalar(cfg.hmax, cfg.smax, cfg.vmax),
             m1
@@ -205,7 +241,11 @@ public class Coral2025Processor extends InstancedVisionProcessor<Coral2025Proces
             .mapToLong(d -> d.zone)
             .filter(z -> z < Integer.MAX_VALUE)
             .toArray();
-        table.getSubTable(name).putValue("seen", NetworkTableValue.makeIntegerArray(seen));
+        NetworkTable table_ = table.getSubTable(name);
+        table_.putValue("seen", NetworkTableValue.makeIntegerArray(seen));
+        putTiming(table_, state);
+        table_.putValue("tagSeq", NetworkTableValue.makeInteger(state.inner.tagSequence));
+        table_.putValue("tagAge", NetworkTableValue.makeDouble(state.inner.tagAge));
     }
 
     @Override
@@ -2,6 +2,8 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
+import frc.vision.camera.FramePacer;
 import frc.vision.load.*;
 import java.time.*;
 import java.util.Map;
@@ -10,12 +12,14 @@ import org.opencv.imgproc.Imgproc;
 
 public class FpsCounter extends InstancedVisionProcessor<FpsCounter.State> {
     static class State {
-        Instant last;
+        long last;
+        boolean started;
         double lastFps;
         double minFps;
         double maxFps;
         double avgFps;
         int numFrames;
+        FramePacer pacer;
     }
     public FpsCounter() {
         this("FPS");
@@ -24,18 +28,31 @@ public class FpsCounter extends InstancedVisionProcessor<FpsCounter.State> {
         super(name, null);
     }
 
+    // The rate is between consecutive frames, so every frame in flight has to go into the same counter.
     @Override
-    protected void processStateful(Mat _img, CameraBase _cfg, Map<String, VisionProcessor> _deps, Ref state) {
-        if (state.inner == null) {
-            state.inner = new State();
-            state.inner.minFps = Float.POSITIVE_INFINITY;
-            state.inner.maxFps = Float.NEGATIVE_INFINITY;
+    protected boolean sharesState() {
+        return true;
+    }
+
+    @Override
+    protected void processStateful(Frame frame, CameraBase cam, Map<String, VisionProcessor> _deps, Ref state) {
+        synchronized (state) {
+            if (state.inner == null) {
+                state.inner = new State();
+                state.inner.pacer = cam.getPacer();
+                state.inner.minFps = Float.POSITIVE_INFINITY;
+                state.inner.maxFps = Float.NEGATIVE_INFINITY;
+            }
+            count(state.inner, frame.getTimestamp());
         }
-        Instant inst = Instant.now();
-        State s = state.inner;
-        if (s.last != null) {
-            Duration diff = Duration.between(s.last, inst);
-            double lastFps = 1000000000 / (double)diff.toNanos();
+    }
+
+    // Count a frame by its capture time, so processing jitter doesn't show up in the numbers.
+    // Frames can finish out of order, so ones older than the last one counted are skipped.
+    protected void count(State s, long inst) {
+        if (s.started && inst <= s.last) return;
+        if (s.started) {
+            double lastFps = 1000000000 / (double)(inst - s.last);
             s.lastFps = lastFps;
             if (lastFps < s.minFps) {
                 s.minFps = lastFps;
@@ -49,6 +66,7 @@ public class FpsCounter extends InstancedVisionProcessor<FpsCounter.State> {
             s.avgFps /= s.numFrames;
         }
         s.last = inst;
+        s.started = true;
     }
 
     @Override
@@ -60,6 +78,10 @@ public class FpsCounter extends InstancedVisionProcessor<FpsCounter.State> {
         table.putValue("minFps", NetworkTableValue.makeDouble(s.minFps));
         table.putValue("maxFps", NetworkTableValue.makeDouble(s.maxFps));
         table.putValue("avgFps", NetworkTableValue.makeDouble(s.avgFps));
+        if (s.pacer != null) {
+            table.putValue("missedDeadlines", NetworkTableValue.makeInteger(s.pacer.getMissed()));
+            table.putValue("droppedDeadlines", NetworkTableValue.makeInteger(s.pacer.getDropped()));
+        }
     }
 
     @Override
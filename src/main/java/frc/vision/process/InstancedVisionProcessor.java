@@ -2,28 +2,82 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.opencv.core.Mat;
 
 // Since vision processors can be used for multiple cameras, they sometimes need to keep their states separate.
-// This class maintaines an ConcurrentHashMap to keep the states separate for each object.
+// Each camera gets a slot the first time it's seen, and its state lives at that index.
+// Compiled plans keep the slot around, so looking the state up on every frame is just an array access.
 public abstract class InstancedVisionProcessor<S> extends VisionProcessor {
     // A simple wrapper around the state to allow passing by reference.
     protected class Ref {
         public S inner;
+        // Sequence number of the frame that inner came from.
+        public long sequence;
+        // Capture time of the frame that inner came from, comparable with System.nanoTime().
+        public long timestamp;
     }
 
-    // The states for this processor.
-    protected ConcurrentHashMap<CameraBase, Ref> states;
+    // The states for this processor, by slot.
+    protected CopyOnWriteArrayList<Ref> states;
+    // The first slot for each camera that's been seen, and how many it has.
+    protected ConcurrentHashMap<CameraBase, Integer> slotIds;
+    protected ConcurrentHashMap<CameraBase, Integer> slotCounts;
 
     protected InstancedVisionProcessor(String name, ProcessorConfig cfg) {
         super(name, cfg);
-        states = new ConcurrentHashMap<CameraBase, Ref>();
+        states = new CopyOnWriteArrayList<Ref>();
+        slotIds = new ConcurrentHashMap<CameraBase, Integer>();
+        slotCounts = new ConcurrentHashMap<CameraBase, Integer>();
+    }
+
+    @Override
+    public int slotsFor(CameraBase handle, int count) {
+        Integer slot = slotIds.get(handle);
+        if (slot != null && slotCounts.get(handle) >= count) return slot;
+        synchronized (slotIds) {
+            slot = slotIds.get(handle);
+            if (slot == null || slotCounts.get(handle) < count) {
+                // blocks have to be consecutive, so a camera that needs more slots than it had gets a new block,
+                // starting with the states from its old one, so they aren't lost and old slots still point at them
+                int had = slot == null ? 0 : slotCounts.get(handle);
+                int start = states.size();
+                for (int i = 0; i < count; i++) {
+                    if (i < had) states.add(states.get(slot + i));
+                    else if (i > 0 && sharesState()) states.add(states.get(start));
+                    else states.add(new Ref());
+                }
+                slot = start;
+                slotCounts.put(handle, count);
+                slotIds.put(handle, slot);
+            }
+            return slot;
+        }
+    }
+
+    // Whether every frame a camera has in flight shares one state, instead of each slot getting its own.
+    // Processors that build something up across frames, like a frame rate or a set of calibration views, need this,
+    // and then have to handle being called for several frames of the same camera at once, and out of order.
+    protected boolean sharesState() {
+        return false;
+    }
+
+    // Get the slot with a camera's most recent result, for callers that only have the handle.
+    // Each frame in flight writes to its own slot, so the first one isn't necessarily the newest.
+    protected int newestSlot(CameraBase handle) {
+        int base = slotFor(handle);
+        int best = base;
+        for (int i = 1; i < slotCounts.get(handle); i++) {
+            if (states.get(base + i).sequence > states.get(best).sequence) best = base + i;
+        }
+        return best;
     }
 
     // Process an image, but given a state instead of just a handle.
-    protected abstract void processStateful(Mat img, CameraBase cfg, Map<String, VisionProcessor> deps, Ref state);
+    protected abstract void processStateful(Frame frame, CameraBase cfg, Map<String, VisionProcessor> deps, Ref state);
 
     // Write data to a network table, but given a state instead of just a handle.
     protected abstract void toNetworkTableStateful(NetworkTable table, Ref state);
@@ -31,22 +85,43 @@ public abstract class InstancedVisionProcessor<S> extends VisionProcessor {
     // Draw on an image, but given a state instead of just a handle.
     protected abstract void drawOnImageStateful(Mat img, Ref state);
 
+    // Write the capture information for the last result, so consumers know how old it is.
+    protected void putTiming(NetworkTable table, Ref state) {
+        table.putValue("seq", NetworkTableValue.makeInteger(state.sequence));
+        table.putValue("ts", NetworkTableValue.makeInteger(state.timestamp / 1000));
+        table.putValue("latency", NetworkTableValue.makeDouble((System.nanoTime() - state.timestamp) / 1000000.0));
+    }
+
     @Override
-    public void process(Mat img, CameraBase handle, Map<String, VisionProcessor> deps) {
-        Ref state = states.putIfAbsent(handle, new Ref());
-        if (state == null) state = states.get(handle);
-        processStateful(img, handle, deps, state);
+    public void process(Frame frame, CameraBase handle, Map<String, VisionProcessor> deps) {
+        process(slotFor(handle), frame, handle, deps);
+    }
+
+    @Override
+    public void process(int slot, Frame frame, CameraBase handle, Map<String, VisionProcessor> deps) {
+        Ref state = states.get(slot);
+        processStateful(frame, handle, deps, state);
+        state.sequence = frame.getSequence();
+        state.timestamp = frame.getTimestamp();
     }
 
     @Override
     public void toNetworkTable(NetworkTable table, CameraBase handle) {
-        Ref state = states.get(handle);
-        toNetworkTableStateful(table, state);
+        toNetworkTable(newestSlot(handle), table, handle);
+    }
+
+    @Override
+    public void toNetworkTable(int slot, NetworkTable table, CameraBase handle) {
+        toNetworkTableStateful(table, states.get(slot));
     }
 
     @Override
     public void drawOnImage(Mat img, CameraBase handle) {
-        Ref state = states.get(handle);
-        drawOnImageStateful(img, state);
+        drawOnImage(newestSlot(handle), img, handle);
+    }
+
+    @Override
+    public void drawOnImage(int slot, Mat img, CameraBase handle) {
+        drawOnImageStateful(img, states.get(slot));
     }
 }
@@ -2,6 +2,7 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import java.util.Collection;
 import java.util.Map;
 import org.opencv.core.*;
@@ -21,11 +22,22 @@ public abstract class ObjectVisionProcessor extends InstancedVisionProcessor<Col
     }
 
     // Process the input image into a list of objects
-    protected abstract Collection<VisionObject> processObjects(Mat img, CameraBase cfg, Map<String, VisionProcessor> deps);
+    // If the frame is a view, the objects can be relative to it, they get moved back into the full frame afterwards.
+    protected abstract Collection<VisionObject> processObjects(Frame frame, CameraBase cfg, Map<String, VisionProcessor> deps);
+
+    // Move objects found in a region of interest back into full frame coordinates.
+    protected void mapFromRoi(Collection<VisionObject> objs, Rect roi) {
+        for (VisionObject obj : objs) {
+            obj.x += roi.x;
+            obj.y += roi.y;
+        }
+    }
 
     @Override
-    public void processStateful(Mat img, CameraBase cfg, Map<String, VisionProcessor> deps, Ref state) {
-        state.inner = processObjects(img, cfg, deps);
+    public void processStateful(Frame frame, CameraBase cfg, Map<String, VisionProcessor> deps, Ref state) {
+        state.inner = processObjects(frame, cfg, deps);
+        Rect roi = frame.getRoi();
+        if (roi != null) mapFromRoi(state.inner, roi);
         if (calcAngles) state.inner.forEach(obj -> obj.calcAngles(cfg.getConfig()));
     }
 
@@ -54,6 +66,7 @@ public abstract class ObjectVisionProcessor extends InstancedVisionProcessor<Col
         table_.putValue("o", NetworkTableValue.makeDoubleArray(o));
 
         table_.putValue("len", NetworkTableValue.makeInteger(size));
+        putTiming(table_, state);
     }
 
     @Override
@@ -2,7 +2,12 @@ package frc.vision.process;
 
 import frc.vision.load.Typed;
 import java.util.Map;
+import org.opencv.core.Rect;
 
 public class ProcessorConfig extends Typed {
     public Map<String, String> deps;
+    // Region of the frame to look at, in pixels. This is narrowed down to the camera's own region, if it has one.
+    public Rect roi;
+    // Thread pool from threads.json to run on, instead of the camera's.
+    public String pool;
 }
@@ -2,6 +2,7 @@ package frc.vision.process;
 
 import frc.vision.camera.CameraBase;
 import frc.vision.camera.CameraConfig;
+import frc.vision.camera.Frame;
 import frc.vision.load.ProcessorFactory;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -18,13 +19,11 @@ public class RectVisionProcessor extends ObjectVisionProcessor {
         this.cfg = cfg;
     }
 
-    protected Collection<VisionObject> processObjects(Mat img, CameraBase cam, Map<String, VisionProcessor> _deps) {
+    protected Collection<VisionObject> processObjects(Frame frame, CameraBase cam, Map<String, VisionProcessor> _deps) {
         CameraConfig ccfg = cam.getConfig();
-        Mat raw = img.clone();
+        // shared with every other rect processor on this frame, so only the first one pays for it
+        Mat hsv = frame.getHsv(Frame.Blur.GAUSSIAN, 13);
         Mat mat2 = new Mat();
-        Imgproc.GaussianBlur(raw, mat2, new Size(13, 13), 0);
-        Mat hsv = new Mat();
-        Imgproc.cvtColor(mat2, hsv, Imgproc.COLOR_BGR2HSV);
         Core.inRange(
             hsv,
             new Scalar(cfg.hmin, cfg.smin, cfg.vmin),
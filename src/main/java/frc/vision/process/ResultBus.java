@@ -0,0 +1,164 @@
+package frc.vision.process;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Results that processors share with each other, like the tags that the color processors line their zones up with.
+// Every producer keeps a short history of its results for each camera, by capture time, so a consumer can ask for the one
+// captured nearest to its own frame, and find out how far apart the two were.
+// The history is preallocated, so publishing doesn't allocate, and lookups fill in a Result that the caller keeps.
+public class ResultBus {
+    // Number of results kept for each producer and camera.
+    public static final int DEFAULT_HISTORY = 8;
+
+    // Channels by producer, then by camera.
+    protected static final ConcurrentHashMap<String, ConcurrentHashMap<String, Channel<?>>> channels = new ConcurrentHashMap<>();
+
+    // A result that was looked up, and how it lines up with the time it was asked for.
+    public static class Result<T> {
+        public T value;
+        // Sequence number and capture time of the frame the result came from.
+        public long sequence;
+        public long timestamp;
+        // How much older the result is than the time that was asked for, in nanoseconds. Negative if it's newer.
+        public long age;
+        public boolean found;
+
+        public double ageMillis() {
+            return age / 1e6;
+        }
+
+        protected void clear() {
+            value = null;
+            sequence = -1;
+            timestamp = 0;
+            age = 0;
+            found = false;
+        }
+    }
+
+    // The recent results from one producer for one camera.
+    public static class Channel<T> {
+        protected final long[] sequences;
+        protected final long[] timestamps;
+        protected final Object[] values;
+        // Where the next result goes, and how many there are.
+        protected int next;
+        protected int count;
+
+        protected Channel(int history) {
+            sequences = new long[history];
+            timestamps = new long[history];
+            values = new Object[history];
+        }
+
+        // Add a result, replacing the oldest one if the history is full.
+        // Frames can finish out of order, so results don't have to be published in capture order.
+        public synchronized void publish(long sequence, long timestamp, T value) {
+            sequences[next] = sequence;
+            timestamps[next] = timestamp;
+            values[next] = value;
+            if (++next == values.length) next = 0;
+            if (count < values.length) count++;
+            notifyAll();
+        }
+
+        // Find the result captured nearest to a time from System.nanoTime(), and fill in out with it.
+        // Returns whether there was one at all.
+        public synchronized boolean nearest(long timestamp, Result<T> out) {
+            return find(timestamp, out);
+        }
+
+        // Same as nearest(), but if nothing's been captured at or after the time yet, wait up to timeoutNs for it first.
+        // This is for when the producer is probably still working on a frame from about the same time, like another camera's.
+        // If the wait is interrupted, the interrupt is kept and whatever's there is used.
+        public synchronized boolean nearest(long timestamp, long timeoutNs, Result<T> out) {
+            if (timeoutNs > 0 && newest() < timestamp) {
+                long deadline = System.nanoTime() + timeoutNs;
+                try {
+                    while (newest() < timestamp) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) break;
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return find(timestamp, out);
+        }
+
+        // Fill in out with the most recently captured result, with its age from now.
+        public synchronized boolean latest(Result<T> out) {
+            out.clear();
+            int best = newestIndex();
+            if (best < 0) return false;
+            fill(best, System.nanoTime(), out);
+            return true;
+        }
+
+        protected int newestIndex() {
+            int best = -1;
+            for (int i = 0; i < count; i++) {
+                if (best < 0 || timestamps[i] > timestamps[best]) best = i;
+            }
+            return best;
+        }
+
+        // Capture time of the newest result, or Long.MIN_VALUE if there aren't any.
+        protected long newest() {
+            int best = newestIndex();
+            return best < 0 ? Long.MIN_VALUE : timestamps[best];
+        }
+
+        protected boolean find(long timestamp, Result<T> out) {
+            out.clear();
+            int best = -1;
+            long bestDist = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                long dist = Math.abs(timestamp - timestamps[i]);
+                if (best < 0 || dist < bestDist) {
+                    best = i;
+                    bestDist = dist;
+                }
+            }
+            if (best < 0) return false;
+            fill(best, timestamp, out);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected void fill(int i, long timestamp, Result<T> out) {
+            out.value = (T)values[i];
+            out.sequence = sequences[i];
+            out.timestamp = timestamps[i];
+            out.age = timestamp - timestamps[i];
+            out.found = true;
+        }
+
+        // Forget every result.
+        public synchronized void clear() {
+            for (int i = 0; i < values.length; i++) values[i] = null;
+            next = 0;
+            count = 0;
+        }
+    }
+
+    protected ResultBus() {}
+
+    // Get the channel for a producer's results from a camera, making it if it's new.
+    // This doesn't allocate once the channel exists.
+    @SuppressWarnings("unchecked")
+    public static <T> Channel<T> channel(String producer, String camera) {
+        return (Channel<T>)channels
+            .computeIfAbsent(producer, _producer -> new ConcurrentHashMap<>())
+            .computeIfAbsent(camera, _camera -> new Channel<T>(DEFAULT_HISTORY));
+    }
+
+    // Forget every result from every producer.
+    public static void clear() {
+        for (var byCamera : channels.values()) {
+            for (Channel<?> channel : byCamera.values()) channel.clear();
+        }
+    }
+}
@@ -2,9 +2,11 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.*;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import frc.vision.load.ProcessorFactory;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -23,9 +25,18 @@ public class TagAlignedColorZoneProcessor extends InstancedVisionProcessor<TagAl
             this.zone = zone;
         }
     }
+    // Each in-flight slot keeps its state, and is only processed again once it's been published,
+    // so the scratch here is never used by two frames at once and nothing has to be synchronized.
     protected static class State {
         List<TaggedRect> filled;
         List<TaggedRect> empty;
+        // Frame the tags came from, and how much older it was than ours, in milliseconds.
+        long tagSequence = -1;
+        double tagAge = Double.NaN;
+        // Tags found for this frame, and scratch images for each zone.
+        final ResultBus.Result<Collection<AprilTagProcessor.AprilTag>> nearTags = new ResultBus.Result<>();
+        final Mat hsv = new Mat();
+        final Mat mask = new Mat();
     }
 
     public static class Position {
@@ -59,6 +70,10 @@ public class TagAlignedColorZoneProcessor extends InstancedVisionProcessor<TagAl
 
         // camera to get april tags from
         public String tagCam;
+        // longest to wait for the tag camera to catch up to our frame, in milliseconds
+        public double tagWait = 0;
+        // tags captured further than this from our frame are ignored, in milliseconds
+        public double maxTagAge = Double.POSITIVE_INFINITY;
         // allowed april tags for us to search for
         public ArrayList<Integer> recognizedTags = new ArrayList<>();
         // available positions to search for
@@ -89,17 +104,32 @@ public class TagAlignedColorZoneProcessor extends InstancedVisionProcessor<TagAl
     }
 
     @Override
-    protected synchronized void processStateful(Mat img, CameraBase cam, Map<String, VisionProcessor> deps, Ref state) {
+    protected void processStateful(Frame frame, CameraBase cam, Map<String, VisionProcessor> deps, Ref state) {
         Config cfg = getConfig();
 
-        state.inner = new State();
+        if (state.inner == null) state.inner = new State();
         state.inner.filled = new ArrayList<>();
         state.inner.empty = new ArrayList<>();
-
-        var seen = AprilTagProcessor.seen.get(cfg.tagCam == null ? cam.getName() : cfg.tagCam);
-        if (seen == null) return;
-
-        Mat buf = new Mat();
+        state.inner.tagSequence = -1;
+        state.inner.tagAge = Double.NaN;
+        var nearTags = state.inner.nearTags;
+        Mat hsv = state.inner.hsv;
+        Mat mask = state.inner.mask;
+
+        String tagCam = cfg.tagCam == null ? cam.getName() : cfg.tagCam;
+        if (!AprilTagProcessor.tagsNear(tagCam, frame.getTimestamp(), cfg.tagWait, nearTags)) return;
+        state.inner.tagSequence = nearTags.sequence;
+        state.inner.tagAge = nearTags.ageMillis();
+        if (Math.abs(nearTags.ageMillis()) > cfg.maxTagAge) return;
+        var seen = nearTags.value;
+        // nothing to look at unless one of our tags is in view
+        if (seen.stream().noneMatch(a -> cfg.recognizedTags.contains(a.getId()))) return;
+
+        Mat img = frame.getMat();
+        // tags are in full frame coordinates, but our image may only be part of the frame
+        Rect region = frame.getRoi();
+        int rx = region == null ? 0 : region.x;
+        int ry = region == null ? 0 : region.y;
 
         for (var a : seen) {
             if (!cfg.recognizedTags.contains(a.getId())) continue;
@@ -110,19 +140,20 @@ public class TagAlignedColorZoneProcessor extends InstancedVisionProcessor<TagAl
                 double h = p.h < 0 ? cfg.h : p.h;
                 double x = a.getX() + p.x * a.width + p.z * sa * a.height - w * 0.5;
                 double y = a.getY() + p.y * -a.height - h * 0.5;
-                if (x < 0 || y < 0 || x + w >= img.cols() || y + h >= img.rows()) continue;
+                if (x < rx || y < ry || x + w >= rx + img.cols() || y + h >= ry + img.rows()) continue;
 
                 Rect r = new Rect((int)x, (int)y, (int)w, (int)h);
-                Mat roi = new Mat(img, r);
-                Imgproc.cvtColor(roi, buf, Imgproc.COLOR_BGR2HSV);
+                // only the zones get converted, the rest of the frame is never looked at
+                Mat roi = new Mat(img, new Rect(r.x - rx, r.y - ry, r.width, r.height));
+                Imgproc.cvtColor(roi, hsv, Imgproc.COLOR_BGR2HSV);
                 Core.inRange(
-                    buf,
+                    hsv,
                     new Scalar(cfg.hmin, cfg.smin, cfg.vmin),
                     new Scalar(cfg.hmax, cfg.smax, cfg.vmax),
-                    roi
+                    mask
                 );
 
-                boolean matches = Core.countNonZero(roi) / (w * h) > (p.minArea < 0 ? cfg.minArea : p.minArea);
+                boolean matches = Core.countNonZero(mask) / (w * h) > (p.minArea < 0 ? cfg.minArea : p.minArea);
                 (matches ? state.inner.filled : state.inner.empty).add(new TaggedRect(r, a.getId() * cfg.positions.size() + i));
             }
         }
@@ -134,6 +165,9 @@ public class TagAlignedColorZoneProcessor extends InstancedVisionProcessor<TagAl
         NetworkTable table_ = table.getSubTable(name);
         table_.putValue("filled", NetworkTableValue.makeIntegerArray(state.inner.filled.stream().mapToLong(x -> x.zone).toArray()));
         table_.putValue("empty", NetworkTableValue.makeIntegerArray(state.inner.empty.stream().mapToLong(x -> x.zone).toArray()));
+        putTiming(table_, state);
+        table_.putValue("tagSeq", NetworkTableValue.makeInteger(state.inner.tagSequence));
+        table_.putValue("tagAge", NetworkTableValue.makeDouble(state.inner.tagAge));
     }
 
     @Override
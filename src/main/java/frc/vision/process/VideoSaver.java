@@ -2,6 +2,7 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.NetworkTable;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import frc.vision.load.*;
 import java.io.File;
 import java.nio.file.Files;
@@ -71,7 +72,7 @@ public class VideoSaver extends VisionProcessor {
     }
 
     @Override
-    public void process(Mat _img, CameraBase handle, Map<String, VisionProcessor> _deps) {
+    public void process(Frame _frame, CameraBase handle, Map<String, VisionProcessor> _deps) {
         register(handle);
     }
     @Override
@@ -115,7 +116,11 @@ public class VideoSaver extends VisionProcessor {
         @Override
         public void run() {
             while (running) {
-                cams.forEach((cam, writer) -> writer.write(cam.getFrame()));
+                cams.forEach((cam, writer) -> {
+                    try (Frame frame = cam.getFrame()) {
+                        if (frame != null) writer.write(frame.getMat());
+                    }
+                });
                 framesWritten++;
                 if (lastTime != null) {
                     long toSleep = (long)(1000 / targetFps - Duration.between(lastTime, Instant.now()).toMillis());
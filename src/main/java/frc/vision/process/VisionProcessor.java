@@ -2,6 +2,7 @@ package frc.vision.process;
 
 import edu.wpi.first.networktables.NetworkTable;
 import frc.vision.camera.CameraBase;
+import frc.vision.camera.Frame;
 import java.util.Map;
 import org.opencv.core.Mat;
 
@@ -19,10 +20,10 @@ public abstract class VisionProcessor {
     public ProcessorConfig getConfig() {
         return config;
     }
-    // Process the input image, given the image directly from the camera.
-    // This must not modify img in any way!
+    // Process the input frame, given the frame directly from the camera.
+    // This must not modify the frame's image in any way!
     // A handle is passed so previously seen results can be reused.
-    public abstract void process(Mat img, CameraBase handle, Map<String, VisionProcessor> deps);
+    public abstract void process(Frame frame, CameraBase handle, Map<String, VisionProcessor> deps);
 
     // Send the output to a given network table.
     // The same handle object passed to process will also be passed here.
@@ -31,4 +32,30 @@ public abstract class VisionProcessor {
     // Draw the output to a given image, for debugging purposes.
     // The image and handle passed will be the same as the one passed to process()
     public abstract void drawOnImage(Mat img, CameraBase handle);
+
+    // Get the slot this processor keeps a camera's state in, or -1 if it doesn't keep any.
+    // This is looked up once when a camera's plan is compiled, and then passed back in instead of the handle being looked up on every frame.
+    public int slotFor(CameraBase handle) {
+        return slotsFor(handle, 1);
+    }
+
+    // Get the first of count consecutive slots for a camera, so each frame it has in flight can keep its own state.
+    public int slotsFor(CameraBase handle, int count) {
+        return -1;
+    }
+
+    // Same as process(), given the slot from slotFor().
+    public void process(int slot, Frame frame, CameraBase handle, Map<String, VisionProcessor> deps) {
+        process(frame, handle, deps);
+    }
+
+    // Same as toNetworkTable(), given the slot from slotFor().
+    public void toNetworkTable(int slot, NetworkTable table, CameraBase handle) {
+        toNetworkTable(table, handle);
+    }
+
+    // Same as drawOnImage(), given the slot from slotFor().
+    public void drawOnImage(int slot, Mat img, CameraBase handle) {
+        drawOnImage(img, handle);
+    }
 }